@@ -3,27 +3,69 @@ package io.honerlaw.audio.fingerprint;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
 
 import io.honerlaw.audio.fingerprint.hash.FingerPrint;
 import io.honerlaw.audio.fingerprint.hash.Spectrogram;
 import io.honerlaw.audio.fingerprint.util.Directory;
 import io.honerlaw.audio.fingerprint.util.Hash;
+import io.honerlaw.audio.fingerprint.util.Transcoder;
 
 /**
  * Represents an audio file. Converts the given file into
  * a wav file and then calculates the spectrogram and fingerprint
- * for the wav file.
+ * for the wav file. When piping the samples are decoded by ffmpeg
+ * straight into the spectrogram and no wav file is written.
+ * 
+ * The file is read only once: its content is hashed in chunks on
+ * the way into ffmpeg, so the hash is known once the file has been
+ * decoded. The spectrogram and the fingerprint are only calculated
+ * when they are asked for.
  * 
  * @author Derek Honerlaw <honerlawd@gmail.com>
  */
 public class AudioFile {
 	
 	/**
-	 * The hash calculated from the content of the original audio file
+	 * The options that make ffmpeg write a 16 bit mono WAV file
+	 */
+	private static final List<String> WAV_OPTIONS = Arrays.asList(
+		"-f", "wav", "-acodec", "pcm_s16le", "-ac", "1", "-ar", String.valueOf(PipedSampleSource.SAMPLE_RATE)
+	);
+	
+	/**
+	 * The size of the chunks the file is hashed in
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * The extension of the files in the WAV directory that map a cache key to the
+	 * hash of the content of a file
+	 */
+	private static final String KEY_EXTENSION = ".key";
+	
+	/**
+	 * The directory the converted files and the cache keys are kept in, see getWAVDirectory
 	 */
-	private final String fileHashString;
+	private static volatile Path wavDirectory;
+	
+	/**
+	 * The hash calculated from the content of the original audio file, when piping
+	 * it is only known once all of the samples have been read or it was asked for
+	 */
+	private volatile String fileHashString;
 	
 	/**
 	 * The audio file that we are working with
@@ -31,29 +73,34 @@ public class AudioFile {
 	private final File file;
 	
 	/**
-	 * The path to the converted wav file
+	 * Whether the samples are piped from ffmpeg instead of read from a wav file
+	 */
+	private final boolean pipe;
+	
+	/**
+	 * The path to the converted wav file, null when piping
 	 */
 	private final String wavFilePath;
 	
 	/**
-	 * The audio file buffer for the given file
+	 * The audio file buffer for the given file, null when piping
 	 */
 	private final AudioFileBuffer buffer;
 	
 	/**
-	 * The audio file header information (wav header information)
+	 * The audio file header information (wav header information), null when piping
 	 */
 	private final AudioFileHeader header;
 	
 	/**
-	 * The fingerprint utility class
+	 * The fingerprint utility class, created when it is first asked for
 	 */
-	private final FingerPrint fingerPrint;
+	private FingerPrint fingerPrint;
 	
 	/**
-	 * The spectrogram utility class
+	 * The spectrogram utility class, created when it is first asked for
 	 */
-	private final Spectrogram spectrogram;
+	private Spectrogram spectrogram;
 
 	/**
 	 * Locate the file, generate a wav file name and then tries to convert the given
@@ -61,36 +108,101 @@ public class AudioFile {
 	 * opening an input stream for the WAV file so we can read it
 	 * 
 	 * @param file The file name
-	 * @param wavFilePath The path to where the wav file is stored
 	 * 
 	 * @throws Exception
 	 */
 	public AudioFile(File file) throws Exception {
-		
-		// calculate the hash for the file name
-		this.fileHashString = Hash.toHex(Hash.calculate(new FileInputStream(file)));
+		this(file, false);
+	}
+	
+	/**
+	 * Locate the file and either convert it into a WAV file like AudioFile(File) or,
+	 * when piping, leave the decoding to the point where the samples are read
+	 * 
+	 * @param file The file name
+	 * @param pipe Whether to pipe the samples from ffmpeg instead of converting to a WAV file
+	 * 
+	 * @throws Exception
+	 */
+	public AudioFile(File file, boolean pipe) throws Exception {
+		this(file, null, pipe);
+	}
+	
+	/**
+	 * Like AudioFile(File, boolean) for a file whose content hash may already be
+	 * known. With the hash a WAV file converted before is used without decoding the
+	 * file again. Without it the hash is looked up by the path, size and modification
+	 * time of the file, which costs no read of the file, and only when the file
+	 * is not known that way is it hashed while it is decoded. A file that is
+	 * rewritten with the same size within the resolution of its modification time
+	 * is mistaken for its old content, pass the hash for such files
+	 * 
+	 * @param file The file name
+	 * @param fileHashString The hash of the content of the file as returned by getFileHashString, or null
+	 * @param pipe Whether to pipe the samples from ffmpeg instead of converting to a WAV file
+	 * 
+	 * @throws Exception
+	 */
+	public AudioFile(File file, String fileHashString, boolean pipe) throws Exception {
 		
 		// try and find and load the file
 		this.file = file;
 		if(!this.file.exists()) {
 			throw new FileNotFoundException();
 		}
-		this.wavFilePath = Directory.WAV + getFileHashString() + ".wav";
-		
-		// convert the audio file to a wav file
-		this.convert();
-		
-		// load the file into the audio file buffer
-		this.buffer = new AudioFileBuffer(this);
 		
-		// read the header information from the audio file
-		this.header = new AudioFileHeader(this.buffer);
-		
-		// initialize the fingerprint utility class
-		this.fingerPrint = new FingerPrint(this);
-		
-		// initialize the spectrogram utility class
-		this.spectrogram = new Spectrogram(this);
+		this.pipe = pipe;
+		if(fileHashString == null) {
+			fileHashString = getCachedHashString(file);
+		}
+		if(pipe) {
+			this.fileHashString = fileHashString;
+			this.wavFilePath = null;
+			this.buffer = null;
+			this.header = null;
+		} else {
+			
+			// decode and hash the file in a single read unless the hash is known
+			if(fileHashString == null) {
+				fileHashString = convertAndHash(file);
+				if(fileHashString == null) {
+					fileHashString = getFileHashString(file);
+				}
+				cacheHashString(file, fileHashString);
+			}
+			this.fileHashString = fileHashString;
+			this.wavFilePath = getWAVDirectory().resolve(fileHashString + ".wav").toString();
+			
+			// convert the audio file to a wav file
+			this.convert();
+			
+			// load the file into the audio file buffer
+			this.buffer = new AudioFileBuffer(this);
+			
+			// read the header information from the audio file
+			this.header = new AudioFileHeader(this.buffer);
+		}
+	}
+	
+	/**
+	 * Gets the directory the converted files and the cache keys are kept in, the
+	 * WAV directory of Directory unless another one was set
+	 * 
+	 * @return The directory
+	 */
+	public static Path getWAVDirectory() {
+		Path directory = wavDirectory;
+		return directory == null ? Paths.get(Directory.WAV) : directory;
+	}
+	
+	/**
+	 * Replaces the directory the converted files and the cache keys are kept in, for
+	 * example with a temporary one
+	 * 
+	 * @param directory The new directory, null to go back to the WAV directory of Directory
+	 */
+	public static void setWAVDirectory(Path directory) {
+		wavDirectory = directory;
 	}
 	
 	/**
@@ -106,25 +218,138 @@ public class AudioFile {
 		}
 		
 		// make the directory if it doesn't exist
-		File wavsDir = new File(Directory.WAV);
-		if(!wavsDir.exists()) {
-			wavsDir.mkdirs();
-		}
+		Files.createDirectories(getWAVDirectory());
 		
-		// convert the file to a 16 bit mono .wav file
-		Process process = Runtime.getRuntime().exec(System.getenv("FFMPEG_PATH") + " -i " + this.file.getAbsolutePath() + " " + getWAVFilePath());
-		if(process.waitFor() != 0) {
-			byte[] data = new byte[process.getErrorStream().available()];
-			process.getErrorStream().read(data);
-			throw new Exception("Failed to convert audio file: " + new String(data));
+		// convert the file to a 16 bit mono .wav file, the number of ffmpeg processes is bounded by the transcoder
+		Transcoder.getDefault().convert(this.file, WAV_OPTIONS, new File(getWAVFilePath()));
+	}
+	
+	/**
+	 * Converts a file to a 16 bit mono WAV file while hashing it, ffmpeg reads the
+	 * file from its standard input through the digest. The WAV file is written under
+	 * a temporary name and renamed after the hash once the hash is known
+	 * 
+	 * @param file The file to convert
+	 * 
+	 * @return The hash as a string, null when ffmpeg could not decode the file from a pipe
+	 * 
+	 * @throws IOException
+	 */
+	private static String convertAndHash(File file) throws IOException {
+		Path wavs = Files.createDirectories(getWAVDirectory());
+		Path partial = Files.createTempFile(wavs, "convert", ".wav");
+		try {
+			MessageDigest digest = Hash.newDigest();
+			try(InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+				Transcoder.getDefault().convert(in, WAV_OPTIONS, partial.toFile());
+				drain(in);
+			}
+			String hash = Hash.toHex(digest.digest());
+			Files.move(partial, wavs.resolve(hash + ".wav"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return hash;
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			
+			// formats that need to seek in their input (mp4 with the index at the end) can only be decoded from the file
+			return null;
+		} finally {
+			Files.deleteIfExists(partial);
+		}
+	}
+	
+	/**
+	 * Gets the cache key of a file, which changes when the file is moved or written
+	 * 
+	 * @param file The file
+	 * 
+	 * @return The hash of the path, size and modification time of the file
+	 */
+	private static String getCacheKey(File file) {
+		return Hash.toHex(Hash.calculate(file.getAbsolutePath() + "\n" + file.length() + "\n" + file.lastModified()));
+	}
+	
+	/**
+	 * Looks up the hash of the content of a file by its cache key
+	 * 
+	 * @param file The file
+	 * 
+	 * @return The hash as a string, null when the file is not known
+	 * 
+	 * @throws IOException
+	 */
+	private static String getCachedHashString(File file) throws IOException {
+		Path key = getWAVDirectory().resolve(getCacheKey(file) + KEY_EXTENSION);
+		if(!Files.exists(key)) {
+			return null;
+		}
+		return new String(Files.readAllBytes(key), StandardCharsets.UTF_8).trim();
+	}
+	
+	/**
+	 * Remembers the hash of the content of a file under its cache key
+	 * 
+	 * @param file The file
+	 * @param hash The hash of its content
+	 * 
+	 * @throws IOException
+	 */
+	private static void cacheHashString(File file, String hash) throws IOException {
+		Path wavs = Files.createDirectories(getWAVDirectory());
+		Path partial = Files.createTempFile(wavs, "key", ".tmp");
+		try {
+			Files.write(partial, hash.getBytes(StandardCharsets.UTF_8));
+			Files.move(partial, wavs.resolve(getCacheKey(file) + KEY_EXTENSION), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(partial);
+		}
+	}
+	
+	/**
+	 * Reads a stream to its end, ffmpeg may stop reading before the end but the hash
+	 * has to cover the whole file
+	 * 
+	 * @param in The stream to read
+	 * 
+	 * @throws IOException
+	 */
+	private static void drain(InputStream in) throws IOException {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		while(in.read(chunk) != -1) {
+			// the digest sees every chunk
 		}
 	}
 	
 	/**
+	 * Calculates the hash of the content of a file, the file is read in chunks
+	 * 
+	 * @param file The file to hash
+	 * 
+	 * @return The hash as a string
+	 * 
+	 * @throws IOException
+	 */
+	public static String getFileHashString(File file) throws IOException {
+		try(InputStream in = new FileInputStream(file)) {
+			return Hash.toHex(Hash.calculate(in));
+		}
+	}
+	
+	/**
+	 * Gets the hash of the content of the file. When piping the hash is calculated
+	 * while the samples are read, if it is asked for before that the file is read
+	 * just to hash it
 	 * 
 	 * @return The file hash as a string
 	 */
 	public String getFileHashString() {
+		if(fileHashString == null) {
+			try {
+				fileHashString = getFileHashString(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 		return fileHashString;
 	}
 	
@@ -157,6 +382,9 @@ public class AudioFile {
 	 * @return The generated fingerprint for the WAV file
 	 */
 	public FingerPrint getFingerPrint() {
+		if(fingerPrint == null) {
+			fingerPrint = new FingerPrint(this);
+		}
 		return fingerPrint;
 	}
 	
@@ -165,27 +393,215 @@ public class AudioFile {
 	 * @return The generated spectrogram for the WAV file
 	 */
 	public Spectrogram getSpectrogram() {
+		if(spectrogram == null) {
+			spectrogram = new Spectrogram(this);
+		}
 		return spectrogram;
 	}
 	
+	/**
+	 * Calculates the number of samples in the WAV file data, only
+	 * available when not piping
+	 * 
+	 * @return The number of samples
+	 */
+	public long getSampleCount() {
+		return getHeader().getDataSize(getBuffer()) / (getHeader().getBitsPerSample() / 8);
+	}
+	
+	/**
+	 * Reads a single sample amplitude straight from the mapped WAV file data,
+	 * only available when not piping
+	 * 
+	 * @param index The index of the sample
+	 * 
+	 * @return The sample amplitude
+	 */
+	public short getSampleAmplitude(long index) {
+		int bytePerSample = getHeader().getBitsPerSample() / 8;
+		long position = getHeader().getDataOffset() + index * bytePerSample;
+		if(bytePerSample == 2) {
+			return getBuffer().getShort(position);
+		}
+		short amplitude = 0;
+		for(int byteNumber = 0; byteNumber < bytePerSample; byteNumber++) {
+			amplitude |= (short) ((getBuffer().get(position++) & 0xFF) << (byteNumber * 8));
+		}
+		return amplitude;
+	}
+	
+	/**
+	 * 
+	 * @return Whether the samples are piped from ffmpeg
+	 */
+	public boolean isPiped() {
+		return pipe;
+	}
+	
+	/**
+	 * Opens a source that reads the sample amplitudes straight from the
+	 * mapped WAV file data, or from ffmpeg when piping
+	 * 
+	 * @return The source of the sample amplitudes
+	 * 
+	 * @throws IOException
+	 */
+	public SampleSource openSamples() throws IOException {
+		if(pipe) {
+			return fileHashString == null ? new HashingSampleSource() : new PipedSampleSource(file);
+		}
+		return new SampleSource() {
+			
+			private final long count = getSampleCount();
+			
+			private long position;
+			
+			@Override
+			public int read(short[] samples, int offset, int length) {
+				if(position >= count) {
+					return -1;
+				}
+				int read = (int) Math.min(length, count - position);
+				for(int i = 0; i < read; ++i) {
+					samples[offset + i] = getSampleAmplitude(position++);
+				}
+				return read;
+			}
+			
+			@Override
+			public void close() {
+				
+			}
+			
+		};
+	}
+	
 	/**
 	 * Calculates the sample amplitudes from the WAV file data
 	 * 
 	 * @return The sample amplitudes of the wav file
+	 * 
+	 * @throws IOException
 	 */
-	public short[] getSampleAmplitudes() {
-		int bytePerSample = getHeader().getBitsPerSample() / 8;
-		int samples = getBuffer().size() / bytePerSample;
-		short[] amplitudes = new short[samples];
-		int position = 0;
-		for(int i = 0; i < samples; ++i) {
-			short amplitude = 0;
-			for(int byteNumber = 0; byteNumber < bytePerSample; byteNumber++) {
-				amplitude |= (short) ((getBuffer().get(position++) & 0xFF) << (byteNumber * 8));
+	public short[] getSampleAmplitudes() throws IOException {
+		if(pipe) {
+			short[] amplitudes = new short[PipedSampleSource.SAMPLE_RATE];
+			int size = 0;
+			try(SampleSource source = openSamples()) {
+				int read;
+				while((read = source.read(amplitudes, size, amplitudes.length - size)) != -1) {
+					size += read;
+					if(size == amplitudes.length) {
+						amplitudes = Arrays.copyOf(amplitudes, size * 2);
+					}
+				}
 			}
-			amplitudes[i] = amplitude;
+			return Arrays.copyOf(amplitudes, size);
+		}
+		short[] amplitudes = new short[(int) getSampleCount()];
+		for(int i = 0; i < amplitudes.length; ++i) {
+			amplitudes[i] = getSampleAmplitude(i);
 		}
 		return amplitudes;
 	}
 	
+	/**
+	 * Reads the samples of a piped file while hashing the bytes on their way into
+	 * ffmpeg, the hash is set once all of the samples have been read. When ffmpeg
+	 * fails before the first sample, which happens for formats that need to seek
+	 * in their input, the file is decoded again from its path and the hash is left
+	 * to getFileHashString
+	 */
+	private class HashingSampleSource implements SampleSource {
+		
+		/**
+		 * Hashes the bytes fed to ffmpeg
+		 */
+		private final MessageDigest digest = Hash.newDigest();
+		
+		/**
+		 * The file through the digest
+		 */
+		private final InputStream in;
+		
+		/**
+		 * The samples, decoded from the digested stream or from the path after falling back
+		 */
+		private SampleSource source;
+		
+		/**
+		 * Whether the samples are decoded from the digested stream
+		 */
+		private boolean hashing = true;
+		
+		/**
+		 * Whether a sample has been read
+		 */
+		private boolean started;
+		
+		/**
+		 * Whether the source has been closed
+		 */
+		private boolean closed;
+		
+		HashingSampleSource() throws IOException {
+			this.in = new DigestInputStream(new FileInputStream(file), digest);
+			try {
+				this.source = new PipedSampleSource(in);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		
+		@Override
+		public int read(short[] samples, int offset, int length) throws IOException {
+			if(closed) {
+				return -1;
+			}
+			int read = source.read(samples, offset, length);
+			if(read != -1) {
+				started = true;
+				return read;
+			}
+			if(!hashing) {
+				return -1;
+			}
+			
+			// all of the samples have been read, close the stream to find out whether ffmpeg succeeded
+			try {
+				source.close();
+				drain(in);
+				in.close();
+				closed = true;
+				fileHashString = Hash.toHex(digest.digest());
+				return -1;
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				if(started) {
+					throw e;
+				}
+				hashing = false;
+				in.close();
+				source = new PipedSampleSource(file);
+				return source.read(samples, offset, length);
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			try {
+				source.close();
+			} finally {
+				in.close();
+			}
+		}
+		
+	}
+	
 }
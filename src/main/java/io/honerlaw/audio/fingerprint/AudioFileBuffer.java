@@ -1,88 +1,182 @@
 package io.honerlaw.audio.fingerprint;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
- * Reads the audio file into a buffer and stores it for
- * further use
- * 
+ * Maps the audio file into memory so the header and the samples
+ * can be read straight from the page cache without copying the
+ * file onto the heap
+ *
  * @author Derek Honerlaw <honerlawd@gmail.com>
  */
 public class AudioFileBuffer {
-	
+
+	/**
+	 * The size of a single mapped region as a power of two, a single
+	 * mapping can not be larger than Integer.MAX_VALUE bytes
+	 */
+	private static final int REGION_SHIFT = 30;
+
+	/**
+	 * The size of a single mapped region in bytes
+	 */
+	private static final long REGION_SIZE = 1L << REGION_SHIFT;
+
+	/**
+	 * Used to get the offset of a position within its region
+	 */
+	private static final long REGION_MASK = REGION_SIZE - 1;
+
+	/**
+	 * The mapped regions of the file
+	 */
+	private final MappedByteBuffer[] regions;
+
 	/**
-	 * The file's content
+	 * The size of the file in bytes
 	 */
-	private final byte[] buffer;
-	
+	private final long size;
+
 	/**
 	 * The current position in the buffer
 	 */
-	private int position;
+	private long position;
 
 	/**
-	 * Read the content from the given wav file
-	 * 
+	 * Map the content of the given wav file
+	 *
 	 * @param file The file to read from
 	 * @throws IOException
 	 */
 	public AudioFileBuffer(AudioFile file) throws IOException {
-		InputStream stream = new FileInputStream(file.getWAVFilePath());
-		this.buffer = new byte[stream.available()];
-		stream.read(this.buffer);
-		stream.close();
+		this(Paths.get(file.getWAVFilePath()));
 	}
-	
+
+	/**
+	 * Map the content of the file at the given path
+	 *
+	 * @param path The path of the file to read from
+	 * @throws IOException
+	 */
+	public AudioFileBuffer(Path path) throws IOException {
+
+		// the mappings stay valid after the channel has been closed
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			this.size = channel.size();
+			this.regions = new MappedByteBuffer[(int) ((size + REGION_MASK) >>> REGION_SHIFT)];
+			for(int i = 0; i < regions.length; ++i) {
+				long start = (long) i << REGION_SHIFT;
+				regions[i] = channel.map(MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+				regions[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+
 	/**
 	 * Get a byte at a specific position
-	 * 
+	 *
+	 * @param position The position to read from
+	 * @return The byte at the given position
+	 */
+	public byte get(long position) {
+		return regions[(int) (position >>> REGION_SHIFT)].get((int) (position & REGION_MASK));
+	}
+
+	/**
+	 * Get a little endian short at a specific position
+	 *
 	 * @param position The position to read from
-	 * @return
+	 * @return The short at the given position
 	 */
-	public byte get(int position) {
-		return buffer[position];
+	public short getShort(long position) {
+		int offset = (int) (position & REGION_MASK);
+
+		// only a short at the very end of a region spans two regions
+		if(offset != REGION_MASK) {
+			return regions[(int) (position >>> REGION_SHIFT)].getShort(offset);
+		}
+		return (short) ((get(position) & 0xff) | (get(position + 1) & 0xff) << 8);
 	}
-	
+
+	/**
+	 * Get a little endian integer at a specific position
+	 *
+	 * @param position The position to read from
+	 * @return The integer at the given position
+	 */
+	public int getInt(long position) {
+		int offset = (int) (position & REGION_MASK);
+		if(offset <= REGION_MASK - 3) {
+			return regions[(int) (position >>> REGION_SHIFT)].getInt(offset);
+		}
+		return (getShort(position) & 0xffff) | (getShort(position + 2) & 0xffff) << 16;
+	}
+
 	/**
-	 * Read a short from the buffer
+	 * Read an unsigned short from the buffer
 	 * @return The read short
 	 */
 	public int getShort() {
-		return (int) ((buffer[position++] & 0xff) | (buffer[position++] & 0xff) << 8);
+		int value = getShort(position) & 0xffff;
+		position += 2;
+		return value;
 	}
-	
+
 	/**
 	 * Read a integer from the buffer
 	 * @return The read integer
 	 */
 	public int getInt() {
-		 return (int) (buffer[position++] & 0xff)
-			| (int) (buffer[position++] & 0xff) << 8
-			| (int) (buffer[position++] & 0xff) << 16
-			| (int) (buffer[position++] & 0xff) << 24;
+		int value = getInt(position);
+		position += 4;
+		return value;
 	}
-	
+
 	/**
 	 * Read a 4 byte string from the buffer
 	 * @return The read string
 	 */
 	public String getString() {
-		return new String(new byte[] {
-			buffer[position++],
-			buffer[position++],
-			buffer[position++],
-			buffer[position++]
+		String value = new String(new byte[] {
+			get(position),
+			get(position + 1),
+			get(position + 2),
+			get(position + 3)
 		});
+		position += 4;
+		return value;
+	}
+
+	/**
+	 * Skip the given number of bytes
+	 *
+	 * @param bytes The number of bytes to skip
+	 */
+	public void skip(long bytes) {
+		position += bytes;
 	}
-	
+
+	/**
+	 * Get the current position in the buffer
+	 * @return The current position
+	 */
+	public long position() {
+		return position;
+	}
+
 	/**
 	 * Get the size of the buffer
-	 * @return
+	 * @return The size in bytes
 	 */
-	public int size() {
-		return buffer.length;
+	public long size() {
+		return size;
 	}
 
 }
@@ -1,5 +1,7 @@
 package io.honerlaw.audio.fingerprint;
 
+import java.io.IOException;
+
 /**
  * Parses the header information from the audio file buffer
  * 
@@ -23,8 +25,17 @@ public class AudioFileHeader {
 	private final int bitsPerSample; // unsigned 2 bytes, little endian
 	private final String subChunkTwoId;	// 4 bytes
 	private final int subChunkTwoSize; // unsigned 4 bytes, little endian
-
-	public AudioFileHeader(AudioFileBuffer buffer) {
+	private final long dataOffset; // the position of the first sample in the buffer
+
+	/**
+	 * Reads the header from the buffer, any chunks between the fmt chunk and the
+	 * data chunk (ffmpeg writes a LIST chunk for example) are skipped
+	 * 
+	 * @param buffer The buffer to read the header from
+	 * 
+	 * @throws IOException If the buffer does not contain a data chunk
+	 */
+	public AudioFileHeader(AudioFileBuffer buffer) throws IOException {
 		this.chunkId = buffer.getString();
 		this.chunkSize = buffer.getInt();
 		this.format = buffer.getString();
@@ -36,8 +47,24 @@ public class AudioFileHeader {
 		this.byteRate = buffer.getInt();
 		this.blockAlign = buffer.getShort();
 		this.bitsPerSample = buffer.getShort();
-		this.subChunkTwoId = buffer.getString();
-		this.subChunkTwoSize = buffer.getInt();
+		
+		// skip the extension of the fmt chunk if there is one
+		buffer.skip(subChunkOneSize - 16);
+		
+		// find the data chunk
+		String id = buffer.getString();
+		int size = buffer.getInt();
+		while(!id.equals("data")) {
+			buffer.skip((size & 0xFFFFFFFFL) + (size & 1));
+			if(buffer.position() + 8 > buffer.size()) {
+				throw new IOException("Missing data chunk in wav file");
+			}
+			id = buffer.getString();
+			size = buffer.getInt();
+		}
+		this.subChunkTwoId = id;
+		this.subChunkTwoSize = size;
+		this.dataOffset = buffer.position();
 	}
 	
 	public String getChunkId() {
@@ -92,4 +119,22 @@ public class AudioFileHeader {
 		return subChunkTwoSize;
 	}
 
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	/**
+	 * Gets the size of the sample data, streamed wav files may not have the
+	 * size filled in so it is limited to what is actually in the buffer
+	 * 
+	 * @param buffer The buffer the header was read from
+	 * 
+	 * @return The size of the sample data in bytes
+	 */
+	public long getDataSize(AudioFileBuffer buffer) {
+		long available = buffer.size() - dataOffset;
+		long size = subChunkTwoSize & 0xFFFFFFFFL;
+		return size == 0 || size > available ? available : size;
+	}
+
 }
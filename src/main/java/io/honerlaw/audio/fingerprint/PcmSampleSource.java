@@ -0,0 +1,70 @@
+package io.honerlaw.audio.fingerprint;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes raw signed 16 bit little endian mono samples from a stream
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class PcmSampleSource implements SampleSource {
+	
+	/**
+	 * The stream containing the raw samples
+	 */
+	private final InputStream in;
+	
+	/**
+	 * The bytes read from the stream that have not been decoded yet
+	 */
+	private final byte[] buffer = new byte[8192];
+	
+	/**
+	 * Whether the first byte of the buffer is the low byte of a sample that
+	 * was split across two reads
+	 */
+	private boolean pending;
+	
+	/**
+	 * Creates a source that decodes the samples in the given stream
+	 * 
+	 * @param in The stream to decode the samples from
+	 */
+	public PcmSampleSource(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read(short[] samples, int offset, int length) throws IOException {
+		if(length == 0) {
+			return 0;
+		}
+		int count = 0;
+		while(count == 0) {
+			int start = pending ? 1 : 0;
+			int read = in.read(buffer, start, Math.min(buffer.length, length * 2) - start);
+			if(read == -1) {
+				return -1;
+			}
+			int filled = start + read;
+			count = filled / 2;
+			for(int i = 0; i < count; ++i) {
+				samples[offset + i] = (short) ((buffer[i * 2] & 0xff) | buffer[i * 2 + 1] << 8);
+			}
+			
+			// keep the low byte of a sample that has not been fully read yet
+			pending = (filled & 1) == 1;
+			if(pending) {
+				buffer[0] = buffer[filled - 1];
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,152 @@
+package io.honerlaw.audio.fingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+import io.honerlaw.audio.fingerprint.util.StreamDrainer;
+import io.honerlaw.audio.fingerprint.util.StreamPump;
+import io.honerlaw.audio.fingerprint.util.Transcoder;
+
+/**
+ * Decodes an audio file with ffmpeg and reads the raw samples from its
+ * standard output, so no WAV file has to be written to disk. The process is
+ * started by the shared Transcoder, so it counts towards its process limit and
+ * is killed after its timeout
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class PipedSampleSource implements SampleSource {
+	
+	/**
+	 * The sample rate ffmpeg resamples the audio to
+	 */
+	public static final int SAMPLE_RATE = 44100;
+	
+	/**
+	 * The ffmpeg output options for 16 bit mono samples
+	 */
+	private static final List<String> OPTIONS = Arrays.asList(
+		"-f", "s16le", "-acodec", "pcm_s16le", "-ac", "1", "-ar", String.valueOf(SAMPLE_RATE)
+	);
+	
+	/**
+	 * The ffmpeg process
+	 */
+	private final Process process;
+	
+	/**
+	 * Decodes the samples from the standard output of the process
+	 */
+	private final PcmSampleSource samples;
+	
+	/**
+	 * Drains the standard error of the process
+	 */
+	private final StreamDrainer errors;
+	
+	/**
+	 * Feeds the standard input of the process, null when ffmpeg reads a file
+	 */
+	private final StreamPump pump;
+	
+	/**
+	 * Whether all of the samples have been read
+	 */
+	private boolean finished;
+	
+	/**
+	 * Starts ffmpeg to decode the given file to 16 bit mono samples
+	 * 
+	 * @param file The file to decode
+	 * 
+	 * @throws IOException
+	 */
+	public PipedSampleSource(File file) throws IOException {
+		this(Transcoder.getDefault().stream(file, OPTIONS), null);
+	}
+	
+	/**
+	 * Starts ffmpeg to decode the content of a stream to 16 bit mono samples, the
+	 * stream is fed to ffmpeg on its own thread. Formats that need to seek in their
+	 * input, like mp4 files with the index at the end, can not be decoded this way
+	 * 
+	 * @param in The encoded audio, left open
+	 * 
+	 * @throws IOException
+	 */
+	public PipedSampleSource(InputStream in) throws IOException {
+		this(Transcoder.getDefault().stream(OPTIONS), in);
+	}
+	
+	/**
+	 * Reads the samples from the standard output of a running process
+	 * 
+	 * @param process The process writing raw samples to its standard output
+	 * 
+	 * @throws IOException
+	 */
+	public PipedSampleSource(Process process) throws IOException {
+		this(process, null);
+	}
+	
+	private PipedSampleSource(Process process, InputStream in) throws IOException {
+		this.process = process;
+		this.samples = new PcmSampleSource(process.getInputStream());
+		this.errors = new StreamDrainer(process.getErrorStream());
+		errors.start();
+		if(in == null) {
+			this.pump = null;
+			process.getOutputStream().close();
+		} else {
+			this.pump = new StreamPump(in, process.getOutputStream());
+			pump.start();
+		}
+	}
+	
+	@Override
+	public int read(short[] samples, int offset, int length) throws IOException {
+		int read = this.samples.read(samples, offset, length);
+		if(read == -1) {
+			finished = true;
+		}
+		return read;
+	}
+
+	/**
+	 * Waits for the process to exit, the process is killed if not all of the
+	 * samples have been read
+	 * 
+	 * @throws IOException If the process failed to decode the file
+	 */
+	@Override
+	public void close() throws IOException {
+		samples.close();
+		if(!finished) {
+			process.destroy();
+		}
+		try {
+			int exitValue = process.waitFor();
+			
+			// the pump ends once the process is gone, the input is the caller's again
+			if(pump != null) {
+				if(finished) {
+					pump.await();
+				} else {
+					pump.join();
+				}
+			}
+			if(exitValue != 0 && finished) {
+				throw new IOException("Failed to convert audio file: " + errors.getOutput());
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+}
@@ -0,0 +1,27 @@
+package io.honerlaw.audio.fingerprint;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of 16 bit mono sample amplitudes that can be read
+ * incrementally instead of loading all of the samples at once
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface SampleSource extends Closeable {
+	
+	/**
+	 * Reads up to length samples into the given buffer
+	 * 
+	 * @param samples The buffer to read the samples into
+	 * @param offset The offset in the buffer to start writing at
+	 * @param length The maximum number of samples to read
+	 * 
+	 * @return The number of samples read or -1 if there are no samples left
+	 * 
+	 * @throws IOException
+	 */
+	int read(short[] samples, int offset, int length) throws IOException;
+
+}
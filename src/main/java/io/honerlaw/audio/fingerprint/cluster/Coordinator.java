@@ -0,0 +1,180 @@
+package io.honerlaw.audio.fingerprint.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.index.Match;
+import io.honerlaw.audio.fingerprint.index.Matcher;
+import io.honerlaw.audio.fingerprint.index.VoteCounter;
+
+/**
+ * Spreads the catalog over several partition servers by hash range. Tracks are
+ * split by the partition of every hash, a query is scattered to every partition
+ * with only the hashes that partition owns and the votes that come back are added
+ * up before picking the matches.
+ *
+ * The requests to all partitions are written before any answer is read, so the
+ * partitions work on a query at the same time. The coordinator keeps one connection
+ * per partition and is used by one thread at a time.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class Coordinator implements Closeable {
+
+	/**
+	 * The connection to every partition, in partition order
+	 */
+	private final Connection[] connections;
+
+	/**
+	 * The number of votes an alignment needs to be a match
+	 */
+	private final int minVotes;
+
+	/**
+	 * The votes of all partitions for the current query
+	 */
+	private final VoteCounter votes = new VoteCounter();
+
+	/**
+	 * Connects to the partition servers with the default number of votes for a match
+	 *
+	 * @param partitions The address of every partition, in partition order
+	 *
+	 * @throws IOException
+	 */
+	public Coordinator(List<InetSocketAddress> partitions) throws IOException {
+		this(partitions, Matcher.MIN_VOTES);
+	}
+
+	/**
+	 * Connects to the partition servers
+	 *
+	 * @param partitions The address of every partition, in partition order
+	 * @param minVotes The number of votes an alignment needs to be a match
+	 *
+	 * @throws IOException
+	 */
+	public Coordinator(List<InetSocketAddress> partitions, int minVotes) throws IOException {
+		this.minVotes = minVotes;
+		this.connections = new Connection[partitions.size()];
+		try {
+			for(int i = 0; i < connections.length; ++i) {
+				connections[i] = new Connection(partitions.get(i));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds a track to the partitions that own its hashes
+	 *
+	 * @param trackId The id of the track
+	 * @param block The hashes of the track
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void add(int trackId, FingerprintBlock block) throws IOException {
+		FingerprintBlock[] parts = split(block);
+		for(int i = 0; i < connections.length; ++i) {
+			connections[i].out.writeByte(Protocol.ADD);
+			connections[i].out.writeInt(trackId);
+			parts[i].writeTo(connections[i].out);
+			connections[i].out.flush();
+		}
+		for(Connection connection : connections) {
+			Protocol.readStatus(connection.in);
+		}
+	}
+
+	/**
+	 * Identifies the given query hashes
+	 *
+	 * @param query The hashes of the query
+	 *
+	 * @return The matches ordered by votes, best first
+	 *
+	 * @throws IOException
+	 */
+	public synchronized List<Match> match(FingerprintBlock query) throws IOException {
+		FingerprintBlock[] parts = split(query);
+
+		// scatter
+		for(int i = 0; i < connections.length; ++i) {
+			connections[i].out.writeByte(Protocol.QUERY);
+			parts[i].writeTo(connections[i].out);
+			connections[i].out.flush();
+		}
+
+		// gather
+		votes.clear();
+		for(Connection connection : connections) {
+			Protocol.readStatus(connection.in);
+			int size = connection.in.readInt();
+			for(int i = 0; i < size; ++i) {
+				long alignment = connection.in.readLong();
+				votes.add(alignment, connection.in.readInt());
+			}
+		}
+		return Matcher.getMatches(votes, minVotes, query.size());
+	}
+
+	/**
+	 * Closes the connections to the partitions
+	 */
+	@Override
+	public void close() throws IOException {
+		for(Connection connection : connections) {
+			if(connection != null) {
+				connection.socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Splits a block by the partition of every hash
+	 *
+	 * @param block The block to split
+	 * @return The hashes of every partition
+	 */
+	private FingerprintBlock[] split(FingerprintBlock block) {
+		FingerprintBlock[] parts = new FingerprintBlock[connections.length];
+		for(int i = 0; i < parts.length; ++i) {
+			parts[i] = new FingerprintBlock(block.size() / parts.length + 16);
+		}
+		for(int i = 0; i < block.size(); ++i) {
+			int hash = block.getHash(i);
+			parts[Protocol.getPartition(hash, parts.length)].accept(hash, block.getTime(i));
+		}
+		return parts;
+	}
+
+	/**
+	 * A connection to a partition server
+	 */
+	private static class Connection {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		Connection(InetSocketAddress address) throws IOException {
+			this.socket = new Socket(address.getAddress(), address.getPort());
+			socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+	}
+
+}
@@ -0,0 +1,247 @@
+package io.honerlaw.audio.fingerprint.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.index.InvertedIndex;
+import io.honerlaw.audio.fingerprint.index.PostingConsumer;
+import io.honerlaw.audio.fingerprint.index.VoteCounter;
+
+/**
+ * Holds the postings of one hash range of the catalog and answers the requests
+ * of a coordinator (see Protocol). A query is answered with the votes of the
+ * query hashes in this partition, the coordinator adds up the votes of every
+ * partition, so the way the fingerprints are hashed doesn't change.
+ *
+ * Every connection is served by its own thread. Queries run concurrently, adding
+ * a track waits for the running queries.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class PartitionServer implements Closeable {
+
+	/**
+	 * The partition served
+	 */
+	private final int partition;
+
+	/**
+	 * The total number of partitions
+	 */
+	private final int partitions;
+
+	/**
+	 * The postings of the partition
+	 */
+	private final InvertedIndex index = new InvertedIndex();
+
+	/**
+	 * Lets queries run concurrently while tracks are added one at a time
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * The socket connections are accepted on
+	 */
+	private ServerSocket serverSocket;
+
+	/**
+	 * Creates the server of a partition
+	 *
+	 * @param partition The partition served
+	 * @param partitions The total number of partitions
+	 */
+	public PartitionServer(int partition, int partitions) {
+		if(partition < 0 || partition >= partitions) {
+			throw new IllegalArgumentException("Invalid partition " + partition + " of " + partitions);
+		}
+		this.partition = partition;
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Starts accepting connections on the loopback interface
+	 *
+	 * @param port The port to listen on, 0 picks a free port
+	 *
+	 * @return The port listened on
+	 *
+	 * @throws IOException
+	 */
+	public int start(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(this::accept, "partition-" + partition);
+		thread.setDaemon(true);
+		thread.start();
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections
+	 */
+	@Override
+	public void close() throws IOException {
+		if(serverSocket != null) {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Accepts connections until the server is closed
+	 */
+	private void accept() {
+		while(!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread thread = new Thread(() -> serve(socket), "partition-" + partition + "-connection");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				if(!serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers the requests of a connection until it is closed
+	 *
+	 * @param socket The connection
+	 */
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			VoteCounter votes = new VoteCounter();
+			QueryConsumer consumer = new QueryConsumer(votes);
+			while(true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+				switch(type) {
+					case Protocol.ADD:
+						add(in.readInt(), FingerprintBlock.readFrom(in));
+						out.writeByte(Protocol.OK);
+						break;
+					case Protocol.QUERY:
+						query(FingerprintBlock.readFrom(in), consumer);
+						out.writeByte(Protocol.OK);
+						out.writeInt(votes.size());
+						for(int i = 0; i < votes.size(); ++i) {
+							out.writeLong(votes.getAlignment(i));
+							out.writeInt(votes.getVotes(i));
+						}
+						break;
+					default:
+						// the rest of the request can not be skipped, so give up on the connection
+						out.writeByte(Protocol.ERROR);
+						out.writeUTF("Unknown request type: " + type);
+						out.flush();
+						return;
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// the connection is gone either way
+			}
+		}
+	}
+
+	/**
+	 * Adds the hashes of a track that belong to this partition
+	 *
+	 * @param trackId The id of the track
+	 * @param block The hashes of the track
+	 */
+	private void add(int trackId, FingerprintBlock block) {
+		lock.writeLock().lock();
+		try {
+			for(int i = 0; i < block.size(); ++i) {
+				int hash = block.getHash(i);
+				if(Protocol.getPartition(hash, partitions) == partition) {
+					index.add(hash, trackId, block.getTime(i));
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts the votes of the query hashes
+	 *
+	 * @param query The query hashes
+	 * @param consumer Counts the votes into its counter
+	 */
+	private void query(FingerprintBlock query, QueryConsumer consumer) {
+		consumer.votes.clear();
+		lock.readLock().lock();
+		try {
+			for(int i = 0; i < query.size(); ++i) {
+				consumer.queryTime = query.getTime(i);
+				index.lookup(query.getHash(i), consumer);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts a vote for every posting of a query hash
+	 */
+	private static class QueryConsumer implements PostingConsumer {
+
+		private final VoteCounter votes;
+		private int queryTime;
+
+		QueryConsumer(VoteCounter votes) {
+			this.votes = votes;
+		}
+
+		@Override
+		public void accept(int trackId, int time) {
+			votes.increment(VoteCounter.pack(trackId, time - queryTime));
+		}
+
+	}
+
+	/**
+	 * Starts a partition server
+	 *
+	 * @param args The port, the partition and the number of partitions
+	 *
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length != 3) {
+			System.err.println("Usage: PartitionServer <port> <partition> <partitions>");
+			System.exit(1);
+		}
+		PartitionServer server = new PartitionServer(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		int port = server.start(Integer.parseInt(args[0]));
+		System.out.println("Partition " + args[1] + " of " + args[2] + " listening on port " + port);
+		Thread.currentThread().join();
+	}
+
+}
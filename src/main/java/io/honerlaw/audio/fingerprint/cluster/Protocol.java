@@ -0,0 +1,64 @@
+package io.honerlaw.audio.fingerprint.cluster;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import io.honerlaw.audio.fingerprint.index.InvertedIndex;
+
+/**
+ * The binary protocol between the coordinator and the partition servers.
+ *
+ * Every request starts with a single byte, the type of the request:
+ *
+ * ADD         track id (int), the hashes of the track (see FingerprintBlock.writeTo)
+ *             answered with OK
+ * QUERY       the hashes of the query (see FingerprintBlock.writeTo)
+ *             answered with OK, alignment count (int), every alignment and its votes (long, int)
+ *
+ * A request that fails is answered with ERROR and a message (UTF). All values are
+ * written with DataOutput, so they are big endian.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public final class Protocol {
+
+	public static final byte ADD = 1;
+	public static final byte QUERY = 2;
+
+	public static final byte OK = 0;
+	public static final byte ERROR = -1;
+
+	private Protocol() {
+
+	}
+
+	/**
+	 * Gets the partition that owns a hash, the mixed hashes are split into equal ranges
+	 *
+	 * @param hash The packed fingerprint hash
+	 * @param partitions The number of partitions
+	 *
+	 * @return The partition
+	 */
+	public static int getPartition(int hash, int partitions) {
+		return (int) (((InvertedIndex.mix(hash) & 0xFFFFFFFFL) * partitions) >>> 32);
+	}
+
+	/**
+	 * Reads the answer to a request and fails when it is an error
+	 *
+	 * @param in The stream to read from
+	 *
+	 * @throws IOException If the request failed
+	 */
+	public static void readStatus(DataInputStream in) throws IOException {
+		byte status = in.readByte();
+		if(status == ERROR) {
+			throw new IOException(in.readUTF());
+		}
+		if(status != OK) {
+			throw new IOException("Invalid status: " + status);
+		}
+	}
+
+}
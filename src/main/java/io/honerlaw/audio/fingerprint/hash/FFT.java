@@ -24,18 +24,46 @@
  */
 package io.honerlaw.audio.fingerprint.hash;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * Fast Fourier Transformer.
  *
+ * An instance only holds precomputed tables and is never modified after
+ * construction, so a single instance can be shared between threads.
+ *
  * @author Karl Helgason
  */
 public final class FFT {
 
-    private double[] w;
-    private int fftFrameSize;
-    private int sign;
-    private int[] bitm_array;
-    private int fftFrameSize2;
+    // Cached instances keyed by frame size and sign, see getInstance
+    private static final ConcurrentMap<Long, FFT> PLANS = new ConcurrentHashMap<Long, FFT>();
+
+    private final double[] w;
+    private final int fftFrameSize;
+    private final int sign;
+    private final int[] bitm_array;
+    private final int fftFrameSize2;
+
+    // cos and sin of PI * k / fftFrameSize, used to split the transform of
+    // packed real input into the spectrum of the real input
+    private final double[] realCos;
+    private final double[] realSin;
+
+    // Gets a shared instance for the given frame size and sign, the twiddle
+    // factors and bit-reversal table are only computed once per frame size
+    public static FFT getInstance(int fftFrameSize, int sign) {
+        Long key = ((long) fftFrameSize << 1) | (sign == -1 ? 0 : 1);
+        FFT fft = PLANS.get(key);
+        if (fft == null) {
+            fft = new FFT(fftFrameSize, sign);
+            FFT existing = PLANS.putIfAbsent(key, fft);
+            if (existing != null)
+                fft = existing;
+        }
+        return fft;
+    }
 
     // Sign = -1 is FFT, 1 is IFFT (inverse FFT)
     // Data = Interlaced double array to be transformed.
@@ -61,6 +89,13 @@ public final class FFT {
             bitm_array[i] = j;
         }
 
+        realCos = new double[fftFrameSize];
+        realSin = new double[fftFrameSize];
+        for (int k = 0; k < fftFrameSize; k++) {
+            realCos[k] = Math.cos(Math.PI * k / fftFrameSize);
+            realSin[k] = Math.sin(Math.PI * k / fftFrameSize);
+        }
+
     }
 
     public void transform(double[] data) {
@@ -68,6 +103,44 @@ public final class FFT {
         calc(fftFrameSize, data, sign, w);
     }
 
+    // Real to complex forward transform of fftFrameSize * 2 real samples.
+    // The samples are packed as fftFrameSize complex values, transformed with
+    // the complex FFT of half the size and then split into the spectrum of the
+    // real input. Data is overwritten, mag receives the magnitude of the
+    // first mag.length positive frequencies (at most fftFrameSize + 1).
+    public void realMagnitudes(double[] data, double[] mag) {
+        if (sign != -1)
+            throw new IllegalStateException("Real transform requires sign -1");
+        if (mag.length > fftFrameSize + 1)
+            throw new IllegalArgumentException("At most " + (fftFrameSize + 1) + " magnitudes");
+
+        transform(data);
+
+        for (int k = 0; k < mag.length; k++) {
+            int n = (k == fftFrameSize ? 0 : k) << 1;
+            int m = (k == 0 ? 0 : fftFrameSize - k) << 1;
+
+            // Z[k] and conj(Z[fftFrameSize - k])
+            double ar = data[n];
+            double ai = data[n + 1];
+            double br = data[m];
+            double bi = -data[m + 1];
+
+            // even and odd sample spectra
+            double er = (ar + br) * 0.5;
+            double ei = (ai + bi) * 0.5;
+            double or = (ai - bi) * 0.5;
+            double oi = (br - ar) * 0.5;
+
+            // X[k] = E[k] + exp(-i PI k / fftFrameSize) * O[k]
+            double c = k == fftFrameSize ? -1 : realCos[k];
+            double s = k == fftFrameSize ? 0 : realSin[k];
+            double xr = er + c * or + s * oi;
+            double xi = ei + c * oi - s * or;
+            mag[k] = Math.sqrt(xr * xr + xi * xi);
+        }
+    }
+
     private final static double[] computeTwiddleFactors(int fftFrameSize,
             int sign) {
 
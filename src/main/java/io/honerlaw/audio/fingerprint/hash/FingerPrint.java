@@ -1,11 +1,11 @@
 package io.honerlaw.audio.fingerprint.hash;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
 import io.honerlaw.audio.fingerprint.AudioFile;
-import io.honerlaw.audio.fingerprint.hash.peak.HashedPeak;
-import io.honerlaw.audio.fingerprint.hash.peak.Peak;
+import io.honerlaw.audio.fingerprint.SampleSource;
+import io.honerlaw.audio.fingerprint.hash.peak.PeakDetector;
+import io.honerlaw.audio.fingerprint.hash.peak.PeakHasher;
 
 /**
  * Calculates the fingerprint of the audio file given
@@ -21,12 +21,7 @@ public class FingerPrint {
 	/**
 	 * The size of the neighborhood to search for peaks in
 	 */
-	private static final int PEAK_NEIGHBORHOOD = 20;
-	
-	/**
-	 * The number of peaks to look through when generating a hash
-	 */
-	private static final int FAN_VALUE = 15;
+	public static final int PEAK_NEIGHBORHOOD = 20;
 	
 	/**
 	 * The audio file that we are trying to fingerprint
@@ -36,7 +31,7 @@ public class FingerPrint {
 	/**
 	 * The generated hashes for the given audio file
 	 */
-	private HashedPeak[] hashes;
+	private FingerprintBlock hashes;
 	
 	/**
 	 * Create a new class that can fingerprint the given audio file
@@ -48,13 +43,13 @@ public class FingerPrint {
 	}
 	
 	/**
-	 * Calculates all of the fingerprint hashes for the given Audiofile
-	 * 
-	 * @param audioFile The audio file to calculate the fingerprint hashes for
+	 * Calculates all of the fingerprint hashes for the given Audiofile. The peaks
+	 * are paired and hashed as they are found, so neither the peaks nor the pairs
+	 * are ever stored as objects
 	 * 
-	 * @return An array of fingerprint hashes
+	 * @return The fingerprint hashes and their anchor times
 	 */
-	public HashedPeak[] getHashes() {
+	public FingerprintBlock getHashes() {
 		if(hashes != null) {
 			return hashes;
 		}
@@ -62,70 +57,46 @@ public class FingerPrint {
 		// get the spectrogram data
 		double[][] spectrogram = audioFile.getSpectrogram().getData();
 		
-		// get the peaks in the spectrogram
-		List<Peak> peaks = new ArrayList<Peak>();
-		for(int i = 0; i < spectrogram.length; ++i) {
-			for(int j = 0; j < spectrogram[0].length; ++j) {
-				if(isPeakAt(i, j, spectrogram, PEAK_NEIGHBORHOOD)) {
-					peaks.add(new Peak(i, j));
-				}
-			}
-		}
-
-		// store the generated hashes
-		List<HashedPeak> hashes = new ArrayList<HashedPeak>(); //new HashedPeak[peaks.size() * FAN_VALUE];
+		// find the peaks in the spectrogram and hash them straight into the block
+		FingerprintBlock hashes = new FingerprintBlock();
+		PeakHasher hasher = new PeakHasher(hashes);
+		PeakDetector.detect(spectrogram, PEAK_NEIGHBORHOOD, hasher);
+		hasher.finish();
+		hashes.trim();
 		
-		// generate a hash for the given peaks
-		for(int i = 0; i < peaks.size(); ++i) {
-			
-			// loop through the current peak and the next 15 peaks
-			for(int j = 0; j < FAN_VALUE; ++j) {
-				if(i + j >= peaks.size()) {
-					break;
-				}
-				
-				// get the two peaks
-				Peak one = peaks.get(i);
-				Peak two = peaks.get(i + j);
-				
-				// calculate the time between them
-				int delta = two.getTime() - one.getTime();
-				
-				// if they are within a reasonable time distance, calculate the hash
-				if(delta >= 0 && delta <= 200) {
-					hashes.add(new HashedPeak(one, two, delta));
-				}
-			}
-		}
-		this.hashes = hashes.toArray(new HashedPeak[hashes.size()]);
-		return this.hashes;
+		this.hashes = hashes;
+		return hashes;
 	}
 	
 	/**
-	 * Checks whether a given point in the spectrogram is a local maxima for the given 
-	 * neighborhood size
+	 * Calculates the fingerprint hashes of raw samples, column by column, without
+	 * keeping the samples or the spectrogram. The columns are normalized like
+	 * Spectrogram.stream does
 	 * 
-	 * @param x The time position in the spectrogram
-	 * @param y The frequency position in the spectrogram
-	 * @param spectrogram The spectrogram data
-	 * @param neighborhood The size of the neighborhood
+	 * @param source The mono 44.1 kHz samples
 	 * 
-	 * @return Whether the given point is a local maxima or not
+	 * @return The fingerprint hashes and their anchor times
+	 * 
+	 * @throws IOException
 	 */
-	private boolean isPeakAt(int x, int y, double[][] spectrogram, int neighborhood) {
-		double amplitude = spectrogram[x][y];
-		int minX = x - neighborhood < 0 ? 0 : x - neighborhood;
-		int maxX = x + neighborhood >= spectrogram.length ? spectrogram.length - 1 : x + neighborhood;
-		int minY = y - neighborhood < 0 ? 0 : y - neighborhood;
-		int maxY = y + neighborhood >= spectrogram[0].length ? spectrogram[0].length - 1 : y + neighborhood;
-		for(int k = minX; k < maxX; ++k) {
-			for(int l = minY; l < maxY; ++l) {
-				if(spectrogram[k][l] > amplitude) {
-					return false;
-				}
-			}
-		}
-		return true;
+	public static FingerprintBlock calculate(SampleSource source) throws IOException {
+		FingerprintBlock hashes = new FingerprintBlock();
+		PeakHasher hasher = new PeakHasher(hashes);
+		PeakDetector detector = new PeakDetector(Spectrogram.FREQUENCY_BINS, PEAK_NEIGHBORHOOD, hasher);
+		new SpectrogramStream(detector, true).process(source);
+		detector.finish();
+		hasher.finish();
+		hashes.trim();
+		return hashes;
+	}
+	
+	/**
+	 * Gets the packed hash value of every fingerprint hash
+	 * 
+	 * @return An array of fingerprint hash values
+	 */
+	public int[] getHashValues() {
+		return getHashes().getHashes();
 	}
 
-}
\ No newline at end of file
+}
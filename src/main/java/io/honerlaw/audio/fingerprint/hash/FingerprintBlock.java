@@ -0,0 +1,307 @@
+package io.honerlaw.audio.fingerprint.hash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The fingerprint hashes of an audio file stored in parallel primitive
+ * arrays, the hash and the time of the anchor peak of every entry. The
+ * frequency of the anchor peak is part of the hash itself.
+ *
+ * Iterating returns each entry packed into a long, the hash in the high
+ * 32 bits and the anchor time in the low 32 bits.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class FingerprintBlock implements HashConsumer, Iterable<Long> {
+
+	/**
+	 * The initial number of entries the block can hold
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The packed hash of every entry
+	 */
+	private int[] hashes;
+
+	/**
+	 * The anchor time of every entry
+	 */
+	private int[] times;
+
+	/**
+	 * The number of entries
+	 */
+	private int size;
+
+	/**
+	 * Creates an empty block
+	 */
+	public FingerprintBlock() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty block that can hold the given number of entries before growing
+	 *
+	 * @param capacity The initial capacity
+	 */
+	public FingerprintBlock(int capacity) {
+		this.hashes = new int[Math.max(1, capacity)];
+		this.times = new int[hashes.length];
+	}
+
+	/**
+	 * Creates a block from existing arrays, the arrays are not copied
+	 *
+	 * @param hashes The packed hash of every entry
+	 * @param times The anchor time of every entry
+	 */
+	public FingerprintBlock(int[] hashes, int[] times) {
+		if(hashes.length != times.length) {
+			throw new IllegalArgumentException("Hashes and times must have the same length");
+		}
+		this.hashes = hashes.length == 0 ? new int[1] : hashes;
+		this.times = times.length == 0 ? new int[1] : times;
+		this.size = hashes.length;
+	}
+
+	/**
+	 * Adds an entry to the block
+	 */
+	@Override
+	public void accept(int hash, int time) {
+		if(size == hashes.length) {
+			hashes = Arrays.copyOf(hashes, size * 2);
+			times = Arrays.copyOf(times, size * 2);
+		}
+		hashes[size] = hash;
+		times[size] = time;
+		size++;
+	}
+
+	/**
+	 *
+	 * @return The number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @param index The index of the entry
+	 * @return The packed hash of the entry
+	 */
+	public int getHash(int index) {
+		if(index >= size) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+		return hashes[index];
+	}
+
+	/**
+	 *
+	 * @param index The index of the entry
+	 * @return The anchor time of the entry
+	 */
+	public int getTime(int index) {
+		if(index >= size) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+		return times[index];
+	}
+
+	/**
+	 *
+	 * @return A copy of the packed hash of every entry
+	 */
+	public int[] getHashes() {
+		return Arrays.copyOf(hashes, size);
+	}
+
+	/**
+	 *
+	 * @return A copy of the anchor time of every entry
+	 */
+	public int[] getTimes() {
+		return Arrays.copyOf(times, size);
+	}
+
+	/**
+	 * Shrinks the arrays to the number of entries
+	 */
+	public void trim() {
+		if(size > 0 && size < hashes.length) {
+			hashes = Arrays.copyOf(hashes, size);
+			times = Arrays.copyOf(times, size);
+		}
+	}
+
+	@Override
+	public PrimitiveIterator.OfLong iterator() {
+		return new PrimitiveIterator.OfLong() {
+
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			@Override
+			public long nextLong() {
+				if(index >= size) {
+					throw new NoSuchElementException();
+				}
+				long entry = pack(hashes[index], times[index]);
+				index++;
+				return entry;
+			}
+
+		};
+	}
+
+	@Override
+	public Spliterator.OfLong spliterator() {
+		return new EntrySpliterator(0, size);
+	}
+
+	/**
+	 *
+	 * @return A stream of the packed entries
+	 */
+	public LongStream stream() {
+		return StreamSupport.longStream(spliterator(), false);
+	}
+
+	/**
+	 * Writes the number of entries followed by every hash and anchor time
+	 *
+	 * @param out The output to write to
+	 *
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for(int i = 0; i < size; ++i) {
+			out.writeInt(hashes[i]);
+			out.writeInt(times[i]);
+		}
+	}
+
+	/**
+	 * Reads a block written by writeTo
+	 *
+	 * @param in The input to read from
+	 * @return The block
+	 *
+	 * @throws IOException
+	 */
+	public static FingerprintBlock readFrom(DataInput in) throws IOException {
+		int size = in.readInt();
+		if(size < 0) {
+			throw new IOException("Invalid hash count: " + size);
+		}
+
+		// the size is not trusted with a large allocation up front
+		FingerprintBlock block = new FingerprintBlock(Math.min(size, 1 << 16));
+		for(int i = 0; i < size; ++i) {
+			int hash = in.readInt();
+			block.accept(hash, in.readInt());
+		}
+		return block;
+	}
+
+	/**
+	 * Packs a hash and an anchor time into a single entry
+	 *
+	 * @param hash The packed hash
+	 * @param time The anchor time
+	 * @return The packed entry
+	 */
+	public static long pack(int hash, int time) {
+		return (long) hash << 32 | (time & 0xFFFFFFFFL);
+	}
+
+	/**
+	 *
+	 * @param entry The packed entry
+	 * @return The hash of the entry
+	 */
+	public static int getHash(long entry) {
+		return (int) (entry >>> 32);
+	}
+
+	/**
+	 *
+	 * @param entry The packed entry
+	 * @return The anchor time of the entry
+	 */
+	public static int getTime(long entry) {
+		return (int) entry;
+	}
+
+	/**
+	 * Splits a range of the entries of the block
+	 */
+	private class EntrySpliterator implements Spliterator.OfLong {
+
+		private int index;
+		private final int end;
+
+		EntrySpliterator(int index, int end) {
+			this.index = index;
+			this.end = end;
+		}
+
+		@Override
+		public boolean tryAdvance(LongConsumer action) {
+			if(index >= end) {
+				return false;
+			}
+			action.accept(pack(hashes[index], times[index]));
+			index++;
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(LongConsumer action) {
+			for(; index < end; ++index) {
+				action.accept(pack(hashes[index], times[index]));
+			}
+		}
+
+		@Override
+		public Spliterator.OfLong trySplit() {
+			int middle = (index + end) >>> 1;
+			if(middle <= index) {
+				return null;
+			}
+			EntrySpliterator prefix = new EntrySpliterator(index, middle);
+			index = middle;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return end - index;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | NONNULL;
+		}
+
+	}
+
+}
@@ -0,0 +1,18 @@
+package io.honerlaw.audio.fingerprint.hash;
+
+/**
+ * Receives fingerprint hashes as they are generated
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface HashConsumer {
+	
+	/**
+	 * Called for every generated hash, in order of the anchor time
+	 * 
+	 * @param hash The packed hash, see HashedPeak.hash
+	 * @param time The time of the anchor peak of the hash
+	 */
+	void accept(int hash, int time);
+
+}
@@ -3,23 +3,56 @@ package io.honerlaw.audio.fingerprint.hash;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import javax.imageio.ImageIO;
 
 import io.honerlaw.audio.fingerprint.AudioFile;
+import io.honerlaw.audio.fingerprint.SampleSource;
 
 public class Spectrogram {
 	
 	/**
 	 * The sample size to use for the FFT
 	 */
-	private static final int FFT_SAMPLE_SIZE = 4096;
+	public static final int FFT_SAMPLE_SIZE = 4096;
 	
 	/**
 	 * Used when calculating the overlap for amplitudes
 	 */
 	private static final int OVERLAP_FACTOR = 2;
 	
+	/**
+	 * The number of samples between the start of two frames
+	 */
+	public static final int HOP_SIZE = FFT_SAMPLE_SIZE / OVERLAP_FACTOR;
+	
+	/**
+	 * The number of frequency units in a spectrogram column
+	 */
+	public static final int FREQUENCY_BINS = FFT_SAMPLE_SIZE / 4;
+	
+	/**
+	 * Magnitudes below this value are treated as silence
+	 */
+	private static final double MIN_VALID_AMPLITUDE = 0.00000000001F;
+	
+	/**
+	 * The hamming window applied to every frame
+	 */
+	static final double[] WINDOW = getHammingWindow();
+	
+	/**
+	 * The largest magnitude a frame of 16 bit samples can produce, used as the
+	 * fixed upper bound when normalizing columns while streaming
+	 */
+	private static final double MAX_AMPLITUDE = getMaxAmplitude();
+	
 	/**
 	 * The audio file that we are currently working with
 	 */
@@ -80,89 +113,165 @@ public class Spectrogram {
 			return data;
 		}
 		
-		short[] amplitudes = audioFile.getSampleAmplitudes();
-		int samples = amplitudes.length;
-		
-		// calculate the overlap
-		if(OVERLAP_FACTOR > 1) {
-			int numOverlappedSamples = samples * OVERLAP_FACTOR;
-			int backSamples = FFT_SAMPLE_SIZE * (OVERLAP_FACTOR-1) / OVERLAP_FACTOR;
-			int fftSampleSize_1= FFT_SAMPLE_SIZE - 1;
-			short[] overlapAmp = new short[numOverlappedSamples];
-			int position = 0;
-			for (int i = 0; i < amplitudes.length; ++i){
-				overlapAmp[position++] = amplitudes[i];
-				if (position % FFT_SAMPLE_SIZE == fftSampleSize_1) {
-					i -= backSamples;
-				}
-			}
-			samples = numOverlappedSamples;
-			amplitudes = overlapAmp;
+		// calculate the absolute spectrogram one frame at a time
+		List<double[]> columns = new ArrayList<double[]>();
+		try {
+			stream((time, column) -> columns.add(column.clone()), false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 		
-		// get the number of frames
-		int frames = samples / FFT_SAMPLE_SIZE;
-		
-		// get the hamming window
-		double[] window = getHammingWindow();
+		// normalize the absolute spectrogram
+		if(columns.size() > 0) {
+			double[][] spectrogram = columns.toArray(new double[columns.size()][]);
+			double[] range = { Double.MAX_VALUE, Double.MIN_VALUE };
+			getRange(spectrogram, 0, spectrogram.length, range);
+			normalize(spectrogram, 0, spectrogram.length, range);
+			this.data = spectrogram;
+			return spectrogram;
+		}
+		return null;
+	}
+	
+	/**
+	 * Generates the spectrogram for the given audio file by splitting the frames
+	 * across the given pool. Every frame is windowed and transformed independently
+	 * and the minimum and maximum used to normalize are found with a parallel reduction
+	 * 
+	 * @param pool The pool to run the calculation in
+	 * 
+	 * @return The spectrogram
+	 */
+	public double[][] getData(ForkJoinPool pool) {
+		if(data != null) {
+			return data;
+		}
 		
-		// calculate the signals
-		double[][] signals = new double[frames][];
-		for(int f = 0; f < frames; ++f) {
-			signals[f] = new double[FFT_SAMPLE_SIZE];
-			int start = f * FFT_SAMPLE_SIZE;
-			for(int n = 0; n <  FFT_SAMPLE_SIZE; ++n) {
-				signals[f][n] = amplitudes[start + n] * window[n];
+		// the frames are read out of order so the samples need random access,
+		// which the mapped WAV file has but the ffmpeg pipe does not
+		short[] amplitudes = null;
+		long samples;
+		try {
+			if(audioFile.isPiped()) {
+				amplitudes = audioFile.getSampleAmplitudes();
+				samples = amplitudes.length;
+			} else {
+				samples = audioFile.getSampleCount();
 			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 		
-		// calculate the absolute spectogram
-		double[][] absolute = new double[frames][];
-		for(int i = 0; i < frames; ++i) {
-			absolute[i] = getMagnitudes(signals[i]);
+		// get the number of frames, the last frame is padded with silence
+		int frames = samples > HOP_SIZE ? (int) ((samples - 1) / HOP_SIZE) : 0;
+		if(frames == 0) {
+			return null;
 		}
 		
+		// calculate the absolute spectrogram and the range of its magnitudes
+		double[][] spectrogram = new double[frames][];
+		double[] range = pool.invoke(new MagnitudeTask(audioFile, amplitudes, samples, spectrogram, 0, frames));
+		
 		// normalize the absolute spectrogram
-		if(absolute.length > 0) {
-			
-			int numFreqUnit = absolute[0].length;
-			
-			double[][] spectrogram = new double[frames][numFreqUnit];
-			
-			// calculate the maximum amplitude and minimum amplitude
-			double maxAmp = Double.MIN_VALUE;
-			double minAmp = Double.MAX_VALUE;
-			for(int i = 0; i < frames; ++i) {
-				for(int j = 0; j < numFreqUnit; ++j) {
-					if(absolute[i][j] > maxAmp) {
-						maxAmp = absolute[i][j];
-					} else if(absolute[i][j] < minAmp) {
-						minAmp = absolute[i][j];
-					}
-				}
+		pool.invoke(new NormalizeTask(spectrogram, 0, frames, range));
+		this.data = spectrogram;
+		return spectrogram;
+	}
+	
+	/**
+	 * Calculates the spectrogram frame by frame and hands each normalized column
+	 * to the consumer as soon as it is finished. Since the whole spectrogram is
+	 * never known the columns are normalized against a fixed range instead of the
+	 * minimum and maximum of the whole spectrogram
+	 * 
+	 * @param consumer The consumer for the spectrogram columns
+	 * 
+	 * @throws IOException
+	 */
+	public void stream(SpectrogramConsumer consumer) throws IOException {
+		stream(consumer, true);
+	}
+	
+	/**
+	 * Reads the samples of the audio file in hop sized chunks and calculates
+	 * the spectrogram columns
+	 * 
+	 * @param consumer The consumer for the spectrogram columns
+	 * @param normalize Whether to normalize the columns against the fixed range
+	 * 
+	 * @throws IOException
+	 */
+	private void stream(SpectrogramConsumer consumer, boolean normalize) throws IOException {
+		try(SampleSource source = audioFile.openSamples()) {
+			new SpectrogramStream(consumer, normalize).process(source);
+		}
+	}
+	
+	/**
+	 * Normalizes a single column against the range of magnitudes that 16 bit samples
+	 * can produce. The scale is logarithmic like the one used by getData so the
+	 * relative order of the intensities, and therefore the peaks, stays the same
+	 * 
+	 * @param column The column to normalize in place
+	 */
+	public static void normalize(double[] column) {
+		double difference = Math.log(MAX_AMPLITUDE / MIN_VALID_AMPLITUDE);
+		for(int j = 0; j < column.length; ++j) {
+			if(column[j] < MIN_VALID_AMPLITUDE) {
+				column[j] = 0;
+			} else {
+				column[j] = Math.min(1, Math.log(column[j] / MIN_VALID_AMPLITUDE) / difference);
 			}
-			
-			// make sure the minAmp is greater than 0
-			double minValidAmp = 0.00000000001F;
-			if (minAmp == 0){
-				minAmp = minValidAmp;
+		}
+	}
+	
+	/**
+	 * Find the minimum and maximum magnitude of the given frames
+	 * 
+	 * @param spectrogram The absolute spectrogram
+	 * @param from The first frame
+	 * @param to The frame after the last frame
+	 * @param range The minimum and maximum so far, updated in place
+	 */
+	private static void getRange(double[][] spectrogram, int from, int to, double[] range) {
+		double minAmp = range[0];
+		double maxAmp = range[1];
+		for(int i = from; i < to; ++i) {
+			for(int j = 0; j < FREQUENCY_BINS; ++j) {
+				if(spectrogram[i][j] > maxAmp) {
+					maxAmp = spectrogram[i][j];
+				}
+				if(spectrogram[i][j] < minAmp) {
+					minAmp = spectrogram[i][j];
+				}
 			}
-			
-			// calculate the normalized spectrogram
-			double difference = Math.log10(maxAmp / minAmp);
-			for(int i = 0; i < frames; ++i) {
-				for(int j = 0; j < numFreqUnit; ++j) {
-					if(absolute[i][j] < minValidAmp) {
-						spectrogram[i][j] = 0;
-					} else {
-						spectrogram[i][j] = Math.log(absolute[i][j] / minAmp) / difference;
-					}
+		}
+		range[0] = minAmp;
+		range[1] = maxAmp;
+	}
+	
+	/**
+	 * Normalize the given frames of the absolute spectrogram in place
+	 * 
+	 * @param spectrogram The absolute spectrogram
+	 * @param from The first frame
+	 * @param to The frame after the last frame
+	 * @param range The minimum and maximum magnitude of the whole spectrogram
+	 */
+	private static void normalize(double[][] spectrogram, int from, int to, double[] range) {
+		
+		// make sure the minAmp is greater than 0
+		double minAmp = range[0] == 0 ? MIN_VALID_AMPLITUDE : range[0];
+		double difference = Math.log10(range[1] / minAmp);
+		for(int i = from; i < to; ++i) {
+			for(int j = 0; j < FREQUENCY_BINS; ++j) {
+				if(spectrogram[i][j] < MIN_VALID_AMPLITUDE) {
+					spectrogram[i][j] = 0;
+				} else {
+					spectrogram[i][j] = Math.log(spectrogram[i][j] / minAmp) / difference;
 				}
 			}
-			this.data = spectrogram;
-			return spectrogram;
 		}
-		return null;
 	}
 	
 	/**
@@ -170,7 +279,7 @@ public class Spectrogram {
 	 * 
 	 * @return The hamming window
 	 */
-	private double[] getHammingWindow() {
+	static double[] getHammingWindow() {
 		int m = FFT_SAMPLE_SIZE / 2;
 		double r;
 		double pi = Math.PI;
@@ -183,34 +292,133 @@ public class Spectrogram {
 	}
 	
 	/**
-	 * Get the frequency intensities
+	 * Calculate the largest magnitude a windowed frame of 16 bit samples can produce
 	 * 
-	 * @param amplitudes amplitudes of the signal
+	 * @return The largest magnitude
+	 */
+	private static double getMaxAmplitude() {
+		double sum = 0;
+		for(double w : WINDOW) {
+			sum += w;
+		}
+		return sum * -Short.MIN_VALUE;
+	}
+	
+	/**
+	 * Get the frequency intensities using the real input transform of a shared FFT plan
 	 * 
-	 * @return intensities of each frequency unit: mag[frequency_unit] = intensity
+	 * @param amplitudes amplitudes of the signal, overwritten by the transform
+	 * @param mag intensities of each frequency unit: mag[frequency_unit] = intensity
 	 */
-	private double[] getMagnitudes(double[] amplitudes) {
-		int sampleSize = amplitudes.length;
-
-		// call the fft and transform the complex numbers
-		new FFT(sampleSize / 2, -1).transform(amplitudes);
+	static void getMagnitudes(double[] amplitudes, double[] mag) {
+		
+		// the real samples are packed into half as many complex values, so the
+		// complex transform is half the size of the frame. only the positive
+		// frequencies are calculated since the negative ones mirror them
+		FFT.getInstance(amplitudes.length / 2, -1).realMagnitudes(amplitudes, mag);
+	}
 
-		// even indexes (0,2,4,6,...) are real parts
-		// odd indexes (1,3,5,7,...) are imaginary parts
-		int indexSize = sampleSize / 2;
+	/**
+	 * Calculates the magnitudes of a range of frames, splitting the range until it is
+	 * small enough. Each task returns the minimum and maximum magnitude of its frames
+	 */
+	private static class MagnitudeTask extends RecursiveTask<double[]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * The number of frames below which a range is not split any further
+		 */
+		private static final int FRAMES_PER_TASK = 16;
+		
+		/**
+		 * The windowed signal of a frame, one per worker thread
+		 */
+		private static final ThreadLocal<double[]> SIGNAL = ThreadLocal.withInitial(() -> new double[FFT_SAMPLE_SIZE]);
+		
+		private final AudioFile audioFile;
+		private final short[] amplitudes;
+		private final long samples;
+		private final double[][] spectrogram;
+		private final int from;
+		private final int to;
+		
+		MagnitudeTask(AudioFile audioFile, short[] amplitudes, long samples, double[][] spectrogram, int from, int to) {
+			this.audioFile = audioFile;
+			this.amplitudes = amplitudes;
+			this.samples = samples;
+			this.spectrogram = spectrogram;
+			this.from = from;
+			this.to = to;
+		}
 
-		// FFT produces a transformed pair of arrays where the first half of the
-		// values represent positive frequency components and the second half
-		// represents negative frequency components.
-		// we omit the negative ones
-		int positiveSize = indexSize / 2;
+		@Override
+		protected double[] compute() {
+			if(to - from > FRAMES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				MagnitudeTask left = new MagnitudeTask(audioFile, amplitudes, samples, spectrogram, from, middle);
+				left.fork();
+				double[] range = new MagnitudeTask(audioFile, amplitudes, samples, spectrogram, middle, to).compute();
+				double[] other = left.join();
+				range[0] = Math.min(range[0], other[0]);
+				range[1] = Math.max(range[1], other[1]);
+				return range;
+			}
+			double[] signal = SIGNAL.get();
+			for(int f = from; f < to; ++f) {
+				long start = (long) f * HOP_SIZE;
+				for(int n = 0; n < FFT_SAMPLE_SIZE; ++n) {
+					long index = start + n;
+					short amplitude = 0;
+					if(index < samples) {
+						amplitude = amplitudes != null ? amplitudes[(int) index] : audioFile.getSampleAmplitude(index);
+					}
+					signal[n] = amplitude * WINDOW[n];
+				}
+				spectrogram[f] = new double[FREQUENCY_BINS];
+				getMagnitudes(signal, spectrogram[f]);
+			}
+			double[] range = { Double.MAX_VALUE, Double.MIN_VALUE };
+			getRange(spectrogram, from, to, range);
+			return range;
+		}
+		
+	}
+	
+	/**
+	 * Normalizes a range of frames, splitting the range until it is small enough
+	 */
+	private static class NormalizeTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * The number of frames below which a range is not split any further
+		 */
+		private static final int FRAMES_PER_TASK = 64;
+		
+		private final double[][] spectrogram;
+		private final int from;
+		private final int to;
+		private final double[] range;
+		
+		NormalizeTask(double[][] spectrogram, int from, int to, double[] range) {
+			this.spectrogram = spectrogram;
+			this.from = from;
+			this.to = to;
+			this.range = range;
+		}
 
-		// calculate the intensities (magnitudes)
-		double[] mag = new double[positiveSize];
-		for (int i = 0; i < indexSize; i += 2) {
-			mag[i / 2] = Math.sqrt(amplitudes[i] * amplitudes[i] + amplitudes[i + 1] * amplitudes[i + 1]);
+		@Override
+		protected void compute() {
+			if(to - from > FRAMES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new NormalizeTask(spectrogram, from, middle, range), new NormalizeTask(spectrogram, middle, to, range));
+			} else {
+				normalize(spectrogram, from, to, range);
+			}
 		}
-		return mag;
+		
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package io.honerlaw.audio.fingerprint.hash;
+
+/**
+ * Receives the columns of a spectrogram one frame at a time
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface SpectrogramConsumer {
+	
+	/**
+	 * Called for every finished spectrogram column in time order. The column
+	 * array is reused for the next frame so it has to be copied if it is kept
+	 * 
+	 * @param time The frame number of the column
+	 * @param column The intensity of each frequency unit
+	 */
+	void accept(int time, double[] column);
+
+}
@@ -0,0 +1,139 @@
+package io.honerlaw.audio.fingerprint.hash;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import io.honerlaw.audio.fingerprint.SampleSource;
+
+/**
+ * Calculates the spectrogram incrementally. Samples are written in chunks of
+ * any size, only the samples of the frame that is currently being filled are kept
+ * and every finished column is handed to the consumer, so the memory used does
+ * not depend on the length of the audio
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class SpectrogramStream {
+
+	/**
+	 * The consumer that receives the finished columns
+	 */
+	private final SpectrogramConsumer consumer;
+
+	/**
+	 * Whether the columns are normalized before they are handed to the consumer
+	 */
+	private final boolean normalize;
+
+	/**
+	 * The samples of the frame that is currently being filled
+	 */
+	private final short[] frame = new short[Spectrogram.FFT_SAMPLE_SIZE];
+
+	/**
+	 * The windowed signal of the current frame
+	 */
+	private final double[] signal = new double[Spectrogram.FFT_SAMPLE_SIZE];
+
+	/**
+	 * The column that is handed to the consumer
+	 */
+	private final double[] column = new double[Spectrogram.FREQUENCY_BINS];
+
+	/**
+	 * The number of samples in the current frame
+	 */
+	private int filled;
+
+	/**
+	 * The frame number of the next column
+	 */
+	private int time;
+
+	/**
+	 * Creates a stream that hands the columns to the given consumer
+	 *
+	 * @param consumer The consumer for the finished columns
+	 * @param normalize Whether to normalize the columns using Spectrogram.normalize
+	 */
+	public SpectrogramStream(SpectrogramConsumer consumer, boolean normalize) {
+		this.consumer = consumer;
+		this.normalize = normalize;
+	}
+
+	/**
+	 * Reads all of the samples from the source in hop sized chunks and
+	 * finishes the stream
+	 *
+	 * @param source The source to read from
+	 *
+	 * @throws IOException
+	 */
+	public void process(SampleSource source) throws IOException {
+		short[] chunk = new short[Spectrogram.HOP_SIZE];
+		int read;
+		while((read = source.read(chunk, 0, chunk.length)) != -1) {
+			write(chunk, 0, read);
+		}
+		finish();
+	}
+
+	/**
+	 * Adds samples to the stream, a column is produced every time a frame is full
+	 *
+	 * @param samples The sample amplitudes
+	 * @param offset The offset of the first sample
+	 * @param length The number of samples
+	 */
+	public void write(short[] samples, int offset, int length) {
+		while(length > 0) {
+			int count = Math.min(length, frame.length - filled);
+			System.arraycopy(samples, offset, frame, filled, count);
+			filled += count;
+			offset += count;
+			length -= count;
+			if(filled == frame.length) {
+				emit();
+
+				// keep the overlapping part of the frame for the next frame
+				System.arraycopy(frame, Spectrogram.HOP_SIZE, frame, 0, frame.length - Spectrogram.HOP_SIZE);
+				filled = frame.length - Spectrogram.HOP_SIZE;
+			}
+		}
+	}
+
+	/**
+	 * Produces the last column from the remaining samples padded with silence
+	 * if there are any samples that have not been part of a frame yet
+	 */
+	public void finish() {
+		if(filled > frame.length - Spectrogram.HOP_SIZE) {
+			Arrays.fill(frame, filled, frame.length, (short) 0);
+			emit();
+		}
+		filled = 0;
+	}
+
+	/**
+	 *
+	 * @return The number of columns produced so far
+	 */
+	public int getTime() {
+		return time;
+	}
+
+	/**
+	 * Calculates the column for the current frame and hands it to the consumer
+	 */
+	private void emit() {
+		for(int n = 0; n < frame.length; ++n) {
+			signal[n] = frame[n] * Spectrogram.WINDOW[n];
+		}
+		Spectrogram.getMagnitudes(signal, column);
+		if(normalize) {
+			Spectrogram.normalize(column);
+		}
+		consumer.accept(time++, column);
+	}
+
+}
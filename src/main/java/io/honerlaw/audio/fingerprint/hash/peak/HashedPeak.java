@@ -1,15 +1,30 @@
 package io.honerlaw.audio.fingerprint.hash.peak;
 
-import io.honerlaw.audio.fingerprint.util.Hash;
-
 /**
  * Represents a two peaks in a given audio file
  * with the ability to hash the two peaks
  * 
+ * The hash packs the frequency of both peaks and the time between
+ * them into a single integer, from the highest bits to the lowest:
+ * 12 bits frequency one | 12 bits frequency two | 8 bits delta
+ * 
  * @author Derek Honerlaw <honerlawd@gmail.com>
  */
 public final class HashedPeak {
 	
+	/**
+	 * The number of bits used for each frequency
+	 */
+	public static final int FREQ_BITS = 12;
+	
+	/**
+	 * The number of bits used for the time between the peaks
+	 */
+	public static final int DELTA_BITS = 8;
+	
+	private static final int FREQ_MASK = (1 << FREQ_BITS) - 1;
+	private static final int DELTA_MASK = (1 << DELTA_BITS) - 1;
+	
 	private final Peak one;
 	private final Peak two;
 	private final int delta;
@@ -32,12 +47,39 @@ public final class HashedPeak {
 		return delta;
 	}
 	
-	public byte[] getHash() {
-		return Hash.calculate(one.getFreq() + "|" + two.getFreq() + "|" + delta);
+	public int getHash() {
+		return hash(one.getFreq(), two.getFreq(), delta);
 	}
 	
 	public String getHashAsHex() {
-		return Hash.toHex(getHash());
+		return String.format("%08x", getHash());
+	}
+	
+	/**
+	 * Packs the frequencies of two peaks and the time between them into a hash
+	 * 
+	 * @param freqOne The frequency of the first peak
+	 * @param freqTwo The frequency of the second peak
+	 * @param delta The time between the peaks
+	 * 
+	 * @return The hash
+	 */
+	public static int hash(int freqOne, int freqTwo, int delta) {
+		return (freqOne & FREQ_MASK) << (FREQ_BITS + DELTA_BITS)
+			| (freqTwo & FREQ_MASK) << DELTA_BITS
+			| (delta & DELTA_MASK);
+	}
+	
+	public static int getFreqOne(int hash) {
+		return hash >>> (FREQ_BITS + DELTA_BITS);
+	}
+	
+	public static int getFreqTwo(int hash) {
+		return (hash >>> DELTA_BITS) & FREQ_MASK;
+	}
+	
+	public static int getDelta(int hash) {
+		return hash & DELTA_MASK;
 	}
 	
-}
\ No newline at end of file
+}
@@ -4,6 +4,9 @@ package io.honerlaw.audio.fingerprint.hash.peak;
  * Represents a peak with a given time and frequency
  * for a specific audio file
  * 
+ * Peaks can also be packed into a single long, the time in
+ * the high 32 bits and the frequency in the low 32 bits
+ * 
  * @author Derek Honerlaw <honerlawd@gmail.com>
  */
 public final class Peak {
@@ -24,4 +27,20 @@ public final class Peak {
 		return freq;
 	}
 	
-}
\ No newline at end of file
+	public long pack() {
+		return pack(time, freq);
+	}
+	
+	public static long pack(int time, int freq) {
+		return (long) time << 32 | (freq & 0xFFFFFFFFL);
+	}
+	
+	public static int getTime(long peak) {
+		return (int) (peak >>> 32);
+	}
+	
+	public static int getFreq(long peak) {
+		return (int) peak;
+	}
+	
+}
@@ -0,0 +1,18 @@
+package io.honerlaw.audio.fingerprint.hash.peak;
+
+/**
+ * Receives the peaks found in a spectrogram
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface PeakConsumer {
+	
+	/**
+	 * Called for every peak, in order of time and then frequency
+	 * 
+	 * @param time The time position of the peak
+	 * @param freq The frequency position of the peak
+	 */
+	void accept(int time, int freq);
+
+}
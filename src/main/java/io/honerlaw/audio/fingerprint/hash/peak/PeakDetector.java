@@ -0,0 +1,205 @@
+package io.honerlaw.audio.fingerprint.hash.peak;
+
+import io.honerlaw.audio.fingerprint.hash.SpectrogramConsumer;
+
+/**
+ * Finds the local maxima of a spectrogram that is fed to it one column at a time.
+ *
+ * A point is a peak when no point in its neighborhood is larger. The neighborhood
+ * maximum is calculated with two passes of a running maximum, first over time for
+ * every frequency unit and then over frequency, each backed by a monotonic deque.
+ * Every point enters and leaves each deque once, so the cost per point does not
+ * depend on the size of the neighborhood. Only the columns that can still be part
+ * of a neighborhood are kept.
+ *
+ * The neighborhood of a point (x, y) covers the times max(0, x - n) up to
+ * min(x + n, frames - 1) - 1 and the same range of frequencies, which matches the
+ * bounds of the original brute force search.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class PeakDetector implements SpectrogramConsumer {
+
+	/**
+	 * The size of the neighborhood to search for peaks in
+	 */
+	private final int neighborhood;
+
+	/**
+	 * The number of frequency units in a column
+	 */
+	private final int bins;
+
+	/**
+	 * The consumer that receives the peaks
+	 */
+	private final PeakConsumer consumer;
+
+	/**
+	 * The number of columns and deque entries kept per frequency unit
+	 */
+	private final int capacity;
+
+	/**
+	 * The columns that can still be part of a neighborhood, indexed by time % capacity
+	 */
+	private final double[][] columns;
+
+	/**
+	 * A deque of times per frequency unit with decreasing values, stored as ring buffers
+	 */
+	private final int[] deques;
+
+	/**
+	 * The absolute index of the first entry of every deque
+	 */
+	private final int[] heads;
+
+	/**
+	 * The absolute index after the last entry of every deque
+	 */
+	private final int[] tails;
+
+	/**
+	 * The maximum over the time neighborhood of every frequency unit
+	 */
+	private final double[] timeMax;
+
+	/**
+	 * The deque of frequency units used for the pass over frequency
+	 */
+	private final int[] freqDeque;
+
+	/**
+	 * The number of columns received
+	 */
+	private int frames;
+
+	/**
+	 * The time of the next column to check for peaks
+	 */
+	private int resolved;
+
+	/**
+	 * The time of the next column to push into the deques
+	 */
+	private int pushed;
+
+	/**
+	 * Creates a detector for columns with the given number of frequency units
+	 *
+	 * @param bins The number of frequency units in a column
+	 * @param neighborhood The size of the neighborhood to search for peaks in
+	 * @param consumer The consumer that receives the peaks
+	 */
+	public PeakDetector(int bins, int neighborhood, PeakConsumer consumer) {
+		this.bins = bins;
+		this.neighborhood = neighborhood;
+		this.consumer = consumer;
+		this.capacity = 2 * neighborhood + 2;
+		this.columns = new double[capacity][bins];
+		this.deques = new int[bins * capacity];
+		this.heads = new int[bins];
+		this.tails = new int[bins];
+		this.timeMax = new double[bins];
+		this.freqDeque = new int[bins];
+	}
+
+	/**
+	 * Finds all of the peaks in a complete spectrogram
+	 *
+	 * @param spectrogram The spectrogram data
+	 * @param neighborhood The size of the neighborhood to search for peaks in
+	 * @param consumer The consumer that receives the peaks
+	 */
+	public static void detect(double[][] spectrogram, int neighborhood, PeakConsumer consumer) {
+		PeakDetector detector = new PeakDetector(spectrogram[0].length, neighborhood, consumer);
+		for(int i = 0; i < spectrogram.length; ++i) {
+			detector.accept(i, spectrogram[i]);
+		}
+		detector.finish();
+	}
+
+	/**
+	 * Adds the next column, the peaks of a column are known once the column
+	 * neighborhood frames later has been added
+	 *
+	 * @param time The time of the column, columns must be added in order
+	 * @param column The intensity of each frequency unit, copied by the detector
+	 */
+	@Override
+	public void accept(int time, double[] column) {
+		System.arraycopy(column, 0, columns[frames % capacity], 0, bins);
+		frames++;
+
+		// a column further than the neighborhood away means the column at the start
+		// of the neighborhood is not the last one, so its upper bound is known
+		while(resolved + neighborhood < frames) {
+			resolve(resolved + neighborhood - 1);
+		}
+	}
+
+	/**
+	 * Finds the peaks in the remaining columns, called after the last column
+	 */
+	public void finish() {
+		while(resolved < frames) {
+			resolve(Math.min(resolved + neighborhood, frames - 1) - 1);
+		}
+	}
+
+	/**
+	 * Finds the peaks in the next column to resolve
+	 *
+	 * @param upper The last time in the neighborhood of the column
+	 */
+	private void resolve(int upper) {
+		int x = resolved++;
+		int lower = Math.max(0, x - neighborhood);
+
+		// extend the running maximum over time up to the end of the neighborhood
+		for(; pushed <= upper; ++pushed) {
+			double[] column = columns[pushed % capacity];
+			for(int y = 0; y < bins; ++y) {
+				int base = y * capacity;
+				while(tails[y] > heads[y] && columns[deques[base + (tails[y] - 1) % capacity] % capacity][y] <= column[y]) {
+					tails[y]--;
+				}
+				deques[base + tails[y]++ % capacity] = pushed;
+			}
+		}
+
+		// drop the times before the start of the neighborhood
+		for(int y = 0; y < bins; ++y) {
+			int base = y * capacity;
+			while(tails[y] > heads[y] && deques[base + heads[y] % capacity] < lower) {
+				heads[y]++;
+			}
+			timeMax[y] = tails[y] > heads[y] ? columns[deques[base + heads[y] % capacity] % capacity][y] : Double.NEGATIVE_INFINITY;
+		}
+
+		// run the maximum over frequency and compare it with the column
+		double[] column = columns[x % capacity];
+		int head = 0;
+		int tail = 0;
+		int next = 0;
+		for(int y = 0; y < bins; ++y) {
+			int minY = Math.max(0, y - neighborhood);
+			int maxY = Math.min(y + neighborhood, bins - 1) - 1;
+			for(; next <= maxY; ++next) {
+				while(tail > head && timeMax[freqDeque[tail - 1]] <= timeMax[next]) {
+					tail--;
+				}
+				freqDeque[tail++] = next;
+			}
+			while(tail > head && freqDeque[head] < minY) {
+				head++;
+			}
+			double max = tail > head ? timeMax[freqDeque[head]] : Double.NEGATIVE_INFINITY;
+			if(!(max > column[y])) {
+				consumer.accept(x, y);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package io.honerlaw.audio.fingerprint.hash.peak;
+
+import io.honerlaw.audio.fingerprint.hash.HashConsumer;
+
+/**
+ * Pairs every peak with the peaks that follow it and hashes each pair.
+ * Peaks are kept packed in a ring buffer that only holds the peaks of the
+ * current anchor, so hashing allocates nothing and can run while the
+ * peaks are still being found
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class PeakHasher implements PeakConsumer {
+	
+	/**
+	 * The number of peaks to look through when generating a hash
+	 */
+	public static final int FAN_VALUE = 15;
+	
+	/**
+	 * The maximum time between two peaks that are hashed together
+	 */
+	public static final int MAX_DELTA = 200;
+	
+	/**
+	 * The consumer that receives the hashes
+	 */
+	private final HashConsumer consumer;
+	
+	/**
+	 * The packed peaks of the current anchor and the ones that follow it
+	 */
+	private final long[] peaks = new long[FAN_VALUE];
+	
+	/**
+	 * The number of peaks received
+	 */
+	private int count;
+	
+	/**
+	 * The index of the next peak to use as an anchor
+	 */
+	private int anchor;
+	
+	/**
+	 * Creates a hasher that hands the hashes to the given consumer
+	 * 
+	 * @param consumer The consumer that receives the hashes
+	 */
+	public PeakHasher(HashConsumer consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Adds the next peak, the hashes of an anchor are generated once
+	 * the peaks it is paired with have been added
+	 */
+	@Override
+	public void accept(int time, int freq) {
+		peaks[count++ % FAN_VALUE] = Peak.pack(time, freq);
+		if(count - anchor == FAN_VALUE) {
+			hash();
+		}
+	}
+	
+	/**
+	 * Generates the hashes of the remaining anchors, called after the last peak
+	 */
+	public void finish() {
+		while(anchor < count) {
+			hash();
+		}
+	}
+	
+	/**
+	 * Generates the hashes of the next anchor
+	 */
+	private void hash() {
+		long one = peaks[anchor % FAN_VALUE];
+		int time = Peak.getTime(one);
+		int freq = Peak.getFreq(one);
+		
+		// loop through the current peak and the next peaks
+		for(int j = anchor; j < count && j < anchor + FAN_VALUE; ++j) {
+			long two = peaks[j % FAN_VALUE];
+			
+			// calculate the time between them
+			int delta = Peak.getTime(two) - time;
+			
+			// if they are within a reasonable time distance, calculate the hash
+			if(delta >= 0 && delta <= MAX_DELTA) {
+				consumer.accept(HashedPeak.hash(freq, Peak.getFreq(two), delta), time);
+			}
+		}
+		anchor++;
+	}
+
+}
@@ -0,0 +1,173 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+
+/**
+ * Identifies many queries at once. The hashes of all queries are sorted, every
+ * distinct hash is looked up a single time in ascending order, which is the order
+ * of the hashes in a segment, and its postings are handed to the vote counter of
+ * every query that contains it. Popular hashes are shared by many queries, so a
+ * batch looks up far fewer hashes than the queries would one at a time, and the
+ * lookups walk the index front to back.
+ *
+ * All of the hashes of a query are looked up, like ShardedMatcher. The hashes
+ * and vote counters of the whole batch are held in memory, so very large batches
+ * should be split by the caller.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class BatchMatcher implements PostingConsumer {
+
+	/**
+	 * The index to look the hashes up in
+	 */
+	private final Index index;
+
+	/**
+	 * The number of votes an alignment needs to be a match
+	 */
+	private final int minVotes;
+
+	/**
+	 * The hashes that are not looked up
+	 */
+	private final StopList stopList;
+
+	/**
+	 * The query of every hash of the batch
+	 */
+	private int[] queries;
+
+	/**
+	 * The anchor time of every hash of the batch
+	 */
+	private int[] times;
+
+	/**
+	 * The sorted hashes with the position of the hash in the batch in the low bits
+	 */
+	private long[] sorted;
+
+	/**
+	 * The votes of every query
+	 */
+	private VoteCounter[] votes;
+
+	/**
+	 * The first and last sorted position of the hash that is being looked up
+	 */
+	private int from;
+	private int to;
+
+	/**
+	 * Creates a batch matcher with the default number of votes for a match
+	 *
+	 * @param index The index to look the hashes up in
+	 */
+	public BatchMatcher(Index index) {
+		this(index, Matcher.MIN_VOTES);
+	}
+
+	/**
+	 * Creates a batch matcher
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param minVotes The number of votes an alignment needs to be a match
+	 */
+	public BatchMatcher(Index index, int minVotes) {
+		this(index, minVotes, StopList.EMPTY);
+	}
+
+	/**
+	 * Creates a batch matcher that skips the stopped hashes
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param minVotes The number of votes an alignment needs to be a match
+	 * @param stopList The hashes that are not looked up
+	 */
+	public BatchMatcher(Index index, int minVotes, StopList stopList) {
+		this.index = index;
+		this.minVotes = minVotes;
+		this.stopList = stopList;
+	}
+
+	/**
+	 * Identifies all of the given queries
+	 *
+	 * @param batch The hashes of every query
+	 *
+	 * @return The matches of every query in the order of the queries, each ordered by votes
+	 */
+	public List<List<Match>> match(List<FingerprintBlock> batch) {
+		int size = 0;
+		for(FingerprintBlock query : batch) {
+			size += query.size();
+		}
+
+		// sort the hashes of all queries, the position breaks ties so the order is stable
+		queries = new int[size];
+		times = new int[size];
+		sorted = new long[size];
+		votes = new VoteCounter[batch.size()];
+		int position = 0;
+		for(int q = 0; q < batch.size(); ++q) {
+			FingerprintBlock query = batch.get(q);
+			votes[q] = new VoteCounter();
+			for(int i = 0; i < query.size(); ++i) {
+				queries[position] = q;
+				times[position] = query.getTime(i);
+				sorted[position] = (long) query.getHash(i) << 32 | position;
+				position++;
+			}
+		}
+		Arrays.sort(sorted);
+
+		// look up every distinct hash once, stopped hashes can not vote so they
+		// don't count towards the size of their query
+		int[] stopped = new int[batch.size()];
+		from = 0;
+		while(from < size) {
+			int hash = (int) (sorted[from] >> 32);
+			to = from + 1;
+			while(to < size && (int) (sorted[to] >> 32) == hash) {
+				to++;
+			}
+			if(stopList.contains(hash)) {
+				for(int i = from; i < to; ++i) {
+					stopped[queries[(int) sorted[i]]]++;
+				}
+			} else if(index.mightContain(hash)) {
+				index.lookup(hash, this);
+			}
+			from = to;
+		}
+
+		List<List<Match>> matches = new ArrayList<List<Match>>(batch.size());
+		for(int q = 0; q < batch.size(); ++q) {
+			matches.add(Matcher.getMatches(votes[q], minVotes, batch.get(q).size() - stopped[q]));
+		}
+
+		// don't hold on to the batch
+		queries = null;
+		times = null;
+		sorted = null;
+		votes = null;
+		return matches;
+	}
+
+	/**
+	 * Counts the vote of a posting for every query hash that is equal to the hash being looked up
+	 */
+	@Override
+	public void accept(int trackId, int time) {
+		for(int i = from; i < to; ++i) {
+			int position = (int) sorted[i];
+			votes[queries[position]].increment(VoteCounter.pack(trackId, time - times[position]));
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.nio.LongBuffer;
+
+/**
+ * A blocked Bloom filter over fingerprint hashes. Every hash sets a few bits in
+ * a single block of 512 bits, one cache line, so checking a hash reads one cache
+ * line no matter how many bits are checked. With ten bits per hash about one in
+ * a hundred hashes that were never added passes.
+ *
+ * The words are either on the heap while a segment is written or read straight
+ * from the segment mapping (see Segment).
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class BloomFilter {
+
+	/**
+	 * The number of longs in a block
+	 */
+	static final int BLOCK_LONGS = 8;
+
+	/**
+	 * The number of bits per added hash
+	 */
+	public static final int BITS_PER_HASH = 10;
+
+	/**
+	 * The number of bits set for every hash
+	 */
+	private static final int BITS_SET = 6;
+
+	/**
+	 * The bits of the filter
+	 */
+	private final LongBuffer words;
+
+	/**
+	 * The number of blocks
+	 */
+	private final int blocks;
+
+	/**
+	 * Creates an empty filter sized for the given number of hashes
+	 *
+	 * @param expectedHashes The number of hashes that will be added
+	 */
+	public BloomFilter(int expectedHashes) {
+		this.blocks = (int) Math.max(1, ((long) expectedHashes * BITS_PER_HASH + BLOCK_LONGS * 64 - 1) / (BLOCK_LONGS * 64));
+		this.words = LongBuffer.wrap(new long[blocks * BLOCK_LONGS]);
+	}
+
+	/**
+	 * Wraps the words of a filter that was written before
+	 *
+	 * @param words The words of the filter
+	 */
+	BloomFilter(LongBuffer words) {
+		this.words = words;
+		this.blocks = words.capacity() / BLOCK_LONGS;
+	}
+
+	/**
+	 * Adds a hash to the filter
+	 *
+	 * @param hash The packed fingerprint hash
+	 */
+	public void add(int hash) {
+		long mixed = mix(hash);
+		int base = getBlock(mixed) * BLOCK_LONGS;
+		long bits = mixed * 0xC2B2AE3D27D4EB4FL;
+		for(int k = 0; k < BITS_SET; ++k) {
+			int bit = (int) (bits >>> (k * 9)) & 511;
+			int word = base + (bit >>> 6);
+			words.put(word, words.get(word) | 1L << (bit & 63));
+		}
+	}
+
+	/**
+	 * Checks whether a hash may have been added, a hash that was added always passes
+	 *
+	 * @param hash The packed fingerprint hash
+	 * @return False when the hash was certainly never added
+	 */
+	public boolean mightContain(int hash) {
+		long mixed = mix(hash);
+		int base = getBlock(mixed) * BLOCK_LONGS;
+		long bits = mixed * 0xC2B2AE3D27D4EB4FL;
+		for(int k = 0; k < BITS_SET; ++k) {
+			int bit = (int) (bits >>> (k * 9)) & 511;
+			if((words.get(base + (bit >>> 6)) & 1L << (bit & 63)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return The number of blocks
+	 */
+	public int getBlockCount() {
+		return blocks;
+	}
+
+	/**
+	 * @param index The index of the word
+	 * @return The word
+	 */
+	long getWord(int index) {
+		return words.get(index);
+	}
+
+	/**
+	 * Picks the block of a hash with the high bits of the mixed hash
+	 *
+	 * @param mixed The mixed hash
+	 * @return The block
+	 */
+	private int getBlock(long mixed) {
+		return (int) (((mixed >>> 32) * blocks) >>> 32);
+	}
+
+	/**
+	 * Spreads the bits of a hash over a long
+	 *
+	 * @param hash The packed fingerprint hash
+	 * @return The mixed hash
+	 */
+	private static long mix(int hash) {
+		long mixed = hash * 0x9E3779B97F4A7C15L;
+		mixed ^= mixed >>> 33;
+		mixed *= 0xFF51AFD7ED558CCDL;
+		mixed ^= mixed >>> 33;
+		return mixed;
+	}
+
+}
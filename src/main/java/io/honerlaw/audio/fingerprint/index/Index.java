@@ -0,0 +1,41 @@
+package io.honerlaw.audio.fingerprint.index;
+
+/**
+ * Maps fingerprint hashes to the places they occur in the indexed tracks
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface Index {
+	
+	/**
+	 * Hands every posting of the given hash to the consumer
+	 * 
+	 * @param hash The packed fingerprint hash
+	 * @param consumer The consumer that receives the postings
+	 * 
+	 * @return The number of postings
+	 */
+	int lookup(int hash, PostingConsumer consumer);
+	
+	/**
+	 * Gets the number of postings of the given hash without visiting them
+	 * 
+	 * @param hash The packed fingerprint hash
+	 * 
+	 * @return The number of postings
+	 */
+	int count(int hash);
+	
+	/**
+	 * Checks whether the hash may be in the index without touching the postings.
+	 * A false answer is certain, a true answer may be wrong
+	 * 
+	 * @param hash The packed fingerprint hash
+	 * 
+	 * @return False when the hash is certainly not in the index
+	 */
+	default boolean mightContain(int hash) {
+		return true;
+	}
+
+}
@@ -0,0 +1,290 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.Arrays;
+
+import io.honerlaw.audio.fingerprint.hash.FingerPrint;
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+
+/**
+ * An in memory inverted index from fingerprint hash to postings.
+ *
+ * The hashes are kept in an open addressing table with linear probing, every
+ * slot owns a growable array of packed postings (see Posting). Nothing is boxed,
+ * so a lookup is a probe of the table and a walk over a long array.
+ *
+ * The index is not thread safe, it can be read by several threads as long as
+ * nothing is added at the same time.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class InvertedIndex implements Index {
+
+	/**
+	 * The initial number of slots in the table, must be a power of two
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The initial number of postings a slot can hold
+	 */
+	private static final int INITIAL_POSTINGS = 4;
+
+	/**
+	 * The hash stored in every slot
+	 */
+	private int[] keys;
+
+	/**
+	 * The postings of every slot, null when the slot is empty
+	 */
+	private long[][] postings;
+
+	/**
+	 * The number of postings used in every slot
+	 */
+	private int[] counts;
+
+	/**
+	 * Used to wrap a position into the table
+	 */
+	private int mask;
+
+	/**
+	 * The number of distinct hashes
+	 */
+	private int size;
+
+	/**
+	 * The total number of postings
+	 */
+	private long postingCount;
+
+	/**
+	 * Creates an empty index
+	 */
+	public InvertedIndex() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty index that can hold about the given number of hashes before growing
+	 *
+	 * @param expectedHashes The expected number of distinct hashes
+	 */
+	public InvertedIndex(int expectedHashes) {
+		int capacity = Integer.highestOneBit(Math.max(2, expectedHashes * 2 - 1)) << 1;
+		this.keys = new int[capacity];
+		this.postings = new long[capacity][];
+		this.counts = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Adds all of the hashes of a fingerprint to the index
+	 *
+	 * @param trackId The id of the fingerprinted track
+	 * @param fingerPrint The fingerprint of the track
+	 */
+	public void add(int trackId, FingerPrint fingerPrint) {
+		add(trackId, fingerPrint.getHashes());
+	}
+
+	/**
+	 * Adds all of the hashes in a block to the index
+	 *
+	 * @param trackId The id of the fingerprinted track
+	 * @param block The hashes of the track
+	 */
+	public void add(int trackId, FingerprintBlock block) {
+		for(int i = 0; i < block.size(); ++i) {
+			add(block.getHash(i), trackId, block.getTime(i));
+		}
+	}
+
+	/**
+	 * Adds a single posting to the index
+	 *
+	 * @param hash The packed fingerprint hash
+	 * @param trackId The id of the track the hash occurs in
+	 * @param time The anchor time of the hash in the track
+	 */
+	public void add(int hash, int trackId, int time) {
+		int slot = slot(hash);
+		if(postings[slot] == null) {
+			keys[slot] = hash;
+			postings[slot] = new long[INITIAL_POSTINGS];
+			size++;
+		} else if(counts[slot] == postings[slot].length) {
+			postings[slot] = Arrays.copyOf(postings[slot], counts[slot] * 2);
+		}
+		postings[slot][counts[slot]++] = Posting.pack(trackId, time);
+		postingCount++;
+
+		// keep the table at most half full so probe sequences stay short
+		if(size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+	}
+
+	/**
+	 * Removes every stopped hash and its postings from the index
+	 *
+	 * @param stopList The hashes to remove
+	 *
+	 * @return The number of postings removed
+	 */
+	public long remove(StopList stopList) {
+		int[] oldKeys = keys;
+		long[][] oldPostings = postings;
+		int[] oldCounts = counts;
+		this.keys = new int[oldKeys.length];
+		this.postings = new long[oldKeys.length][];
+		this.counts = new int[oldKeys.length];
+
+		// move the kept hashes to a new table, removing in place would break the probe sequences
+		long removed = 0;
+		size = 0;
+		for(int i = 0; i < oldKeys.length; ++i) {
+			if(oldPostings[i] == null) {
+				continue;
+			}
+			if(stopList.contains(oldKeys[i])) {
+				removed += oldCounts[i];
+				continue;
+			}
+			int slot = slot(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			postings[slot] = oldPostings[i];
+			counts[slot] = oldCounts[i];
+			size++;
+		}
+		postingCount -= removed;
+		return removed;
+	}
+
+	@Override
+	public int lookup(int hash, PostingConsumer consumer) {
+		int slot = slot(hash);
+		long[] list = postings[slot];
+		if(list == null) {
+			return 0;
+		}
+		int count = counts[slot];
+		for(int i = 0; i < count; ++i) {
+			long posting = list[i];
+			consumer.accept(Posting.getTrackId(posting), Posting.getTime(posting));
+		}
+		return count;
+	}
+
+	@Override
+	public int count(int hash) {
+		return counts[slot(hash)];
+	}
+
+	@Override
+	public boolean mightContain(int hash) {
+		return postings[slot(hash)] != null;
+	}
+
+	/**
+	 *
+	 * @return The number of distinct hashes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return The total number of postings
+	 */
+	public long getPostingCount() {
+		return postingCount;
+	}
+
+	/**
+	 *
+	 * @return The number of slots in the table
+	 */
+	int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot The slot in the table
+	 * @return The hash in the slot, only valid when the slot is used
+	 */
+	int getKey(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * @param slot The slot in the table
+	 * @return The postings of the slot, null when the slot is empty
+	 */
+	long[] getPostings(int slot) {
+		return postings[slot];
+	}
+
+	/**
+	 * @param slot The slot in the table
+	 * @return The number of postings used in the slot
+	 */
+	int getCount(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * Finds the slot that holds the given hash or the empty slot it should go in
+	 *
+	 * @param hash The packed fingerprint hash
+	 * @return The slot
+	 */
+	private int slot(int hash) {
+		int slot = mix(hash) & mask;
+		while(postings[slot] != null && keys[slot] != hash) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Moves all of the slots into a table of the given size
+	 *
+	 * @param capacity The new number of slots, must be a power of two
+	 */
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		long[][] oldPostings = postings;
+		int[] oldCounts = counts;
+		this.keys = new int[capacity];
+		this.postings = new long[capacity][];
+		this.counts = new int[capacity];
+		this.mask = capacity - 1;
+		for(int i = 0; i < oldKeys.length; ++i) {
+			if(oldPostings[i] != null) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				postings[slot] = oldPostings[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of a hash, the packed fingerprint hashes are far from uniform
+	 *
+	 * @param hash The packed fingerprint hash
+	 * @return The mixed hash
+	 */
+	public static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+}
@@ -0,0 +1,59 @@
+package io.honerlaw.audio.fingerprint.index;
+
+/**
+ * A track that a query matched and how well it matched
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public final class Match {
+	
+	private final int trackId;
+	private final int offset;
+	private final int votes;
+	private final double confidence;
+	
+	public Match(int trackId, int offset, int votes, double confidence) {
+		this.trackId = trackId;
+		this.offset = offset;
+		this.votes = votes;
+		this.confidence = confidence;
+	}
+	
+	/**
+	 * 
+	 * @return The id of the matched track
+	 */
+	public int getTrackId() {
+		return trackId;
+	}
+	
+	/**
+	 * 
+	 * @return The frame in the track where the query starts
+	 */
+	public int getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * 
+	 * @return The number of query hashes that agree with the offset
+	 */
+	public int getVotes() {
+		return votes;
+	}
+	
+	/**
+	 * 
+	 * @return The share of the looked up query hashes that agree with the offset, between 0 and 1
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+	
+	@Override
+	public String toString() {
+		return "Match [trackId=" + trackId + ", offset=" + offset + ", votes=" + votes + ", confidence=" + confidence + "]";
+	}
+
+}
@@ -0,0 +1,294 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.honerlaw.audio.fingerprint.AudioFile;
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+
+/**
+ * Identifies a query against an index. Every posting of every query hash is a
+ * vote for the track it occurs in at the offset between the track and the query,
+ * the alignment with the most votes is the match.
+ *
+ * The query hashes are first checked against the filters of the index, a query
+ * without enough hashes that may be in the index is rejected before any postings
+ * are read. Looking up stops as soon as one alignment has a clear lead, either
+ * because no other alignment can catch up with the hashes that are left or because
+ * it has enough votes and leads the best alignment of any other track by a wide
+ * margin.
+ *
+ * A matcher reuses its counters between queries, so it is not thread safe and
+ * every thread should use its own matcher.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class Matcher implements PostingConsumer {
+
+	/**
+	 * The default number of votes an alignment needs to be a match
+	 */
+	public static final int MIN_VOTES = 5;
+
+	/**
+	 * The default number of votes after which a clear lead stops the lookup
+	 */
+	public static final int EARLY_VOTES = 30;
+
+	/**
+	 * The default factor by which the best alignment has to lead the best alignment
+	 * of any other track to stop the lookup
+	 */
+	public static final double LEAD_FACTOR = 4;
+
+	/**
+	 * The maximum number of matches returned
+	 */
+	public static final int MAX_MATCHES = 10;
+
+	/**
+	 * The index to look the hashes up in
+	 */
+	private final Index index;
+
+	/**
+	 * The number of votes an alignment needs to be a match
+	 */
+	private final int minVotes;
+
+	/**
+	 * The number of votes after which a clear lead stops the lookup
+	 */
+	private final int earlyVotes;
+
+	/**
+	 * The factor by which the best alignment has to lead to stop the lookup
+	 */
+	private final double leadFactor;
+
+	/**
+	 * The hashes that are not looked up
+	 */
+	private final StopList stopList;
+
+	/**
+	 * The votes of the current query
+	 */
+	private final VoteCounter votes = new VoteCounter();
+
+	/**
+	 * The positions of the query hashes that may be in the index
+	 */
+	private int[] candidates = new int[0];
+
+	/**
+	 * The number of query hashes that are not stopped up to every candidate
+	 */
+	private int[] considered = new int[0];
+
+	/**
+	 * The anchor time of the query hash that is being looked up
+	 */
+	private int queryTime;
+
+	/**
+	 * The alignment with the most votes
+	 */
+	private long bestAlignment;
+
+	/**
+	 * The votes of the alignment with the most votes
+	 */
+	private int best;
+
+	/**
+	 * The votes of the best alignment of any other track
+	 */
+	private int second;
+
+	/**
+	 * Creates a matcher for the given index with the default thresholds
+	 *
+	 * @param index The index to look the hashes up in
+	 */
+	public Matcher(Index index) {
+		this(index, MIN_VOTES, EARLY_VOTES, LEAD_FACTOR);
+	}
+
+	/**
+	 * Creates a matcher for the given index
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param minVotes The number of votes an alignment needs to be a match
+	 * @param earlyVotes The number of votes after which a clear lead stops the lookup
+	 * @param leadFactor The factor by which the best alignment has to lead to stop the lookup
+	 */
+	public Matcher(Index index, int minVotes, int earlyVotes, double leadFactor) {
+		this(index, minVotes, earlyVotes, leadFactor, StopList.EMPTY);
+	}
+
+	/**
+	 * Creates a matcher for the given index that skips the stopped hashes
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param stopList The hashes that are not looked up
+	 */
+	public Matcher(Index index, StopList stopList) {
+		this(index, MIN_VOTES, EARLY_VOTES, LEAD_FACTOR, stopList);
+	}
+
+	/**
+	 * Creates a matcher for the given index that skips the stopped hashes
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param minVotes The number of votes an alignment needs to be a match
+	 * @param earlyVotes The number of votes after which a clear lead stops the lookup
+	 * @param leadFactor The factor by which the best alignment has to lead to stop the lookup
+	 * @param stopList The hashes that are not looked up
+	 */
+	public Matcher(Index index, int minVotes, int earlyVotes, double leadFactor, StopList stopList) {
+		this.index = index;
+		this.stopList = stopList;
+		this.minVotes = minVotes;
+		this.earlyVotes = earlyVotes;
+		this.leadFactor = leadFactor;
+	}
+
+	/**
+	 * Identifies the given audio file
+	 *
+	 * @param audioFile The query audio file
+	 *
+	 * @return The matches ordered by votes, best first
+	 */
+	public List<Match> match(AudioFile audioFile) {
+		return match(audioFile.getFingerPrint().getHashes());
+	}
+
+	/**
+	 * Identifies the given query hashes
+	 *
+	 * @param query The hashes of the query
+	 *
+	 * @return The matches ordered by votes, best first
+	 */
+	public List<Match> match(FingerprintBlock query) {
+		votes.clear();
+		bestAlignment = 0;
+		best = 0;
+		second = 0;
+
+		// find the hashes that may be in the index without touching the postings, a hash
+		// votes at most once for an alignment, so a query with fewer candidates than the
+		// votes needed for a match is rejected as soon as that is certain
+		int size = query.size();
+		if(candidates.length < size) {
+			candidates = new int[size];
+			considered = new int[size];
+		}
+		int count = 0;
+		int stopped = 0;
+		for(int i = 0; i < size; ++i) {
+			int hash = query.getHash(i);
+			if(stopList.contains(hash)) {
+				stopped++;
+			} else if(index.mightContain(hash)) {
+				candidates[count] = i;
+				considered[count] = i + 1 - stopped;
+				count++;
+				continue;
+			}
+			if(count + size - i - 1 < minVotes) {
+				return new ArrayList<Match>();
+			}
+		}
+		if(count < minVotes) {
+			return new ArrayList<Match>();
+		}
+
+		// stopped hashes can not vote, so they don't count as looked up
+		int looked = size - stopped;
+		for(int c = 0; c < count; ++c) {
+			int i = candidates[c];
+			queryTime = query.getTime(i);
+			index.lookup(query.getHash(i), this);
+			if(hasClearLead(count - c - 1)) {
+				looked = considered[c];
+				break;
+			}
+		}
+		return getMatches(votes, minVotes, looked);
+	}
+
+	/**
+	 * Counts the vote of a posting of the query hash that is being looked up
+	 */
+	@Override
+	public void accept(int trackId, int time) {
+		long alignment = VoteCounter.pack(trackId, time - queryTime);
+		int count = votes.increment(alignment);
+		if(alignment == bestAlignment) {
+			best = count;
+		} else if(count > best) {
+			if(trackId != VoteCounter.getTrackId(bestAlignment)) {
+				second = best;
+			}
+			best = count;
+			bestAlignment = alignment;
+		} else if(count > second && trackId != VoteCounter.getTrackId(bestAlignment)) {
+			second = count;
+		}
+	}
+
+	/**
+	 * Checks whether the best alignment is far enough ahead to stop looking up
+	 *
+	 * @param remaining The number of query hashes that have not been looked up
+	 *
+	 * @return Whether to stop looking up
+	 */
+	private boolean hasClearLead(int remaining) {
+		if(best < minVotes) {
+			return false;
+		}
+
+		// a query hash votes at most once for an alignment, so the best alignment
+		// can not be overtaken when its lead is larger than the hashes left
+		if(best - second > remaining) {
+			return true;
+		}
+		return best >= earlyVotes && best >= leadFactor * second;
+	}
+
+	/**
+	 * Collects the best alignment of every track with enough votes
+	 *
+	 * @param votes The votes of the query
+	 * @param minVotes The number of votes an alignment needs to be a match
+	 * @param looked The number of query hashes that were looked up
+	 *
+	 * @return The matches ordered by votes, best first
+	 */
+	public static List<Match> getMatches(VoteCounter votes, int minVotes, int looked) {
+		Map<Integer, Match> tracks = new HashMap<Integer, Match>();
+		for(int i = 0; i < votes.size(); ++i) {
+			int count = votes.getVotes(i);
+			if(count < minVotes) {
+				continue;
+			}
+			long alignment = votes.getAlignment(i);
+			int trackId = VoteCounter.getTrackId(alignment);
+			Match match = tracks.get(trackId);
+			if(match == null || match.getVotes() < count) {
+				tracks.put(trackId, new Match(trackId, VoteCounter.getOffset(alignment), count, (double) count / looked));
+			}
+		}
+		List<Match> matches = new ArrayList<Match>(tracks.values());
+		Collections.sort(matches, (a, b) -> Integer.compare(b.getVotes(), a.getVotes()));
+		return matches.size() > MAX_MATCHES ? new ArrayList<Match>(matches.subList(0, MAX_MATCHES)) : matches;
+	}
+
+}
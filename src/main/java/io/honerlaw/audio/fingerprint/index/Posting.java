@@ -0,0 +1,28 @@
+package io.honerlaw.audio.fingerprint.index;
+
+/**
+ * A posting is a place where a hash occurs, the id of the track and the
+ * anchor time of the hash in that track, packed into a single long with the
+ * track id in the high 32 bits and the anchor time in the low 32 bits
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public final class Posting {
+	
+	private Posting() {
+		
+	}
+	
+	public static long pack(int trackId, int time) {
+		return (long) trackId << 32 | (time & 0xFFFFFFFFL);
+	}
+	
+	public static int getTrackId(long posting) {
+		return (int) (posting >>> 32);
+	}
+	
+	public static int getTime(long posting) {
+		return (int) posting;
+	}
+
+}
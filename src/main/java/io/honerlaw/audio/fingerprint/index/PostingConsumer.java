@@ -0,0 +1,18 @@
+package io.honerlaw.audio.fingerprint.index;
+
+/**
+ * Receives the postings of a hash during a lookup
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface PostingConsumer {
+	
+	/**
+	 * Called for every posting of the hash that was looked up
+	 * 
+	 * @param trackId The id of the track the hash occurs in
+	 * @param time The anchor time of the hash in the track
+	 */
+	void accept(int trackId, int time);
+
+}
@@ -0,0 +1,165 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes the postings list of a hash into a compact byte form that is decoded
+ * straight from a segment mapping while looking up.
+ *
+ * The postings are sorted by track id and anchor time. A list starts with the
+ * number of postings followed by a pair of values for every posting, the difference
+ * to the previous track id and either the difference to the previous anchor time
+ * when the track is the same or the anchor time itself when it is not. Every value
+ * is written as an unsigned varint, seven bits per byte with the high bit set on
+ * all bytes but the last, so most postings take two or three bytes instead of eight.
+ *
+ * The differences are taken in 32 bit arithmetic and wrap around, so any track id
+ * and anchor time can be encoded.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public final class PostingsCodec {
+
+	/**
+	 * The maximum number of bytes of a single varint
+	 */
+	public static final int MAX_VARINT_SIZE = 5;
+
+	private PostingsCodec() {
+
+	}
+
+	/**
+	 * Sorts packed postings in the order they are encoded in
+	 *
+	 * @param postings The packed postings
+	 * @param count The number of postings to sort
+	 */
+	public static void sort(long[] postings, int count) {
+		Arrays.sort(postings, 0, count);
+	}
+
+	/**
+	 * Gets the largest number of bytes the given number of postings can be encoded in
+	 *
+	 * @param count The number of postings
+	 * @return The maximum encoded size in bytes
+	 */
+	public static int getMaxSize(int count) {
+		return MAX_VARINT_SIZE + count * 2 * MAX_VARINT_SIZE;
+	}
+
+	/**
+	 * Encodes sorted postings
+	 *
+	 * @param postings The packed postings sorted with sort
+	 * @param count The number of postings
+	 * @param out The buffer to encode into, must hold at least getMaxSize(count) bytes
+	 *
+	 * @return The number of bytes written
+	 */
+	public static int encode(long[] postings, int count, byte[] out) {
+		int position = writeVarint(count, out, 0);
+		int previousTrackId = 0;
+		int previousTime = 0;
+		for(int i = 0; i < count; ++i) {
+			int trackId = Posting.getTrackId(postings[i]);
+			int time = Posting.getTime(postings[i]);
+			position = writeVarint(trackId - previousTrackId, out, position);
+			position = writeVarint(trackId == previousTrackId && i > 0 ? time - previousTime : time, out, position);
+			previousTrackId = trackId;
+			previousTime = time;
+		}
+		return position;
+	}
+
+	/**
+	 * Decodes a postings list
+	 *
+	 * @param data The buffer holding the encoded list
+	 * @param position The position of the list in the buffer
+	 * @param consumer Receives every posting
+	 *
+	 * @return The number of postings
+	 */
+	public static int decode(ByteBuffer data, int position, PostingConsumer consumer) {
+		int count = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data.get(position++);
+			count |= (b & 0x7F) << shift;
+			shift += 7;
+		} while(b < 0);
+
+		int trackId = 0;
+		int time = 0;
+		for(int i = 0; i < count; ++i) {
+			int delta = 0;
+			shift = 0;
+			do {
+				b = data.get(position++);
+				delta |= (b & 0x7F) << shift;
+				shift += 7;
+			} while(b < 0);
+
+			int value = 0;
+			shift = 0;
+			do {
+				b = data.get(position++);
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while(b < 0);
+
+			// the first posting of every track has its absolute anchor time
+			if(delta != 0 || i == 0) {
+				trackId += delta;
+				time = value;
+			} else {
+				time += value;
+			}
+			consumer.accept(trackId, time);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the number of postings at the start of a list
+	 *
+	 * @param data The buffer holding the encoded list
+	 * @param position The position of the list in the buffer
+	 *
+	 * @return The number of postings
+	 */
+	public static int getCount(ByteBuffer data, int position) {
+		int count = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data.get(position++);
+			count |= (b & 0x7F) << shift;
+			shift += 7;
+		} while(b < 0);
+		return count;
+	}
+
+	/**
+	 * Writes an unsigned varint
+	 *
+	 * @param value The value, read as unsigned
+	 * @param out The buffer to write into
+	 * @param position The position to write at
+	 *
+	 * @return The position after the varint
+	 */
+	private static int writeVarint(int value, byte[] out, int position) {
+		while((value & ~0x7F) != 0) {
+			out[position++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		out[position++] = (byte) value;
+		return position;
+	}
+
+}
@@ -0,0 +1,245 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An immutable index segment read straight from a memory mapped file. Nothing is
+ * deserialized when a segment is opened, lookups read the mapping directly and the
+ * operating system page cache decides what stays in memory. Several processes that
+ * open the same segment share the same physical pages.
+ *
+ * The file is little endian and laid out as follows:
+ *
+ * header      magic (int), version (int), hash count (int), filter block count (int), posting count (long), data size (long), source count (int)
+ * hashes      every hash in ascending order (int[hash count])
+ * filter      a Bloom filter of the hashes (long[filter block count * 8], see BloomFilter)
+ * data        the compressed postings list of every hash one after another (byte[data size], see PostingsCodec)
+ * offsets     the position of the list of every hash in the data and the data size (int[hash count + 1])
+ * sources     the generations of the segments this one was merged from (long[source count])
+ *
+ * A segment is written by SegmentWriter. A merged segment names its sources so an index
+ * that crashed before deleting them knows they are already part of it.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class Segment implements Index {
+
+	/**
+	 * The magic number at the start of every segment file
+	 */
+	static final int MAGIC = 0x53504641;
+
+	/**
+	 * The version of the file layout
+	 */
+	static final int VERSION = 4;
+
+	/**
+	 * The size of the header in bytes
+	 */
+	static final int HEADER_SIZE = 36;
+
+	/**
+	 * The maximum number of postings in a segment, the compressed postings have to fit in a single mapping
+	 */
+	public static final int MAX_POSTINGS = Integer.MAX_VALUE / 8;
+
+	/**
+	 * The path of the segment file
+	 */
+	private final Path path;
+
+	/**
+	 * The number of distinct hashes
+	 */
+	private final int hashCount;
+
+	/**
+	 * The total number of postings
+	 */
+	private final long postingCount;
+
+	/**
+	 * The sorted hashes
+	 */
+	private final IntBuffer hashes;
+
+	/**
+	 * The Bloom filter of the hashes
+	 */
+	private final BloomFilter filter;
+
+	/**
+	 * The position of the postings list of every hash in the data
+	 */
+	private final IntBuffer offsets;
+
+	/**
+	 * The compressed postings lists
+	 */
+	private final ByteBuffer data;
+
+	/**
+	 * The generations of the segments this one was merged from
+	 */
+	private final long[] sources;
+
+	/**
+	 * Maps the segment at the given path
+	 *
+	 * @param path The path of the segment file
+	 *
+	 * @throws IOException If the file can not be read or is not a segment
+	 */
+	public Segment(Path path) throws IOException {
+		this.path = path;
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer header = map(channel, 0, HEADER_SIZE);
+			if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("Not a segment file: " + path);
+			}
+			this.hashCount = header.getInt(8);
+			int filterBlocks = header.getInt(12);
+			this.postingCount = header.getLong(16);
+			long dataSize = header.getLong(24);
+			int sourceCount = header.getInt(32);
+
+			long position = HEADER_SIZE;
+			this.hashes = map(channel, position, hashCount * 4L).asIntBuffer();
+			position += hashCount * 4L;
+			this.filter = new BloomFilter(map(channel, position, filterBlocks * BloomFilter.BLOCK_LONGS * 8L).asLongBuffer());
+			position += filterBlocks * BloomFilter.BLOCK_LONGS * 8L;
+			this.data = map(channel, position, dataSize);
+			position += dataSize;
+			this.offsets = map(channel, position, (hashCount + 1) * 4L).asIntBuffer();
+			position += (hashCount + 1) * 4L;
+			this.sources = new long[sourceCount];
+			map(channel, position, sourceCount * 8L).asLongBuffer().get(sources);
+		}
+	}
+
+	@Override
+	public int lookup(int hash, PostingConsumer consumer) {
+		int index = find(hash);
+		return index < 0 ? 0 : PostingsCodec.decode(data, offsets.get(index), consumer);
+	}
+
+	/**
+	 * Checks the Bloom filter of the segment, which is much smaller than the hashes
+	 */
+	@Override
+	public boolean mightContain(int hash) {
+		return filter.mightContain(hash);
+	}
+
+	@Override
+	public int count(int hash) {
+		int index = find(hash);
+		return index < 0 ? 0 : PostingsCodec.getCount(data, offsets.get(index));
+	}
+
+	/**
+	 *
+	 * @return The path of the segment file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 *
+	 * @return The number of distinct hashes
+	 */
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 *
+	 * @return The total number of postings
+	 */
+	public long getPostingCount() {
+		return postingCount;
+	}
+
+	/**
+	 *
+	 * @return The generations of the segments this one was merged from, empty when it was written from memory
+	 */
+	public long[] getSources() {
+		return sources.clone();
+	}
+
+	/**
+	 * @param index The index of the hash in sorted order
+	 * @return The hash
+	 */
+	int getHash(int index) {
+		return hashes.get(index);
+	}
+
+	/**
+	 * @param index The index of the hash in sorted order
+	 * @return The number of postings of the hash
+	 */
+	int getCount(int index) {
+		return PostingsCodec.getCount(data, offsets.get(index));
+	}
+
+	/**
+	 * @param index The index of the hash in sorted order
+	 * @param consumer Receives every posting of the hash
+	 */
+	void getPostings(int index, PostingConsumer consumer) {
+		PostingsCodec.decode(data, offsets.get(index), consumer);
+	}
+
+	/**
+	 * Binary searches the sorted hashes
+	 *
+	 * @param hash The hash to find
+	 * @return The index of the hash or a negative number when it is not in the segment
+	 */
+	private int find(int hash) {
+		int low = 0;
+		int high = hashCount - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			int value = hashes.get(middle);
+			if(value < hash) {
+				low = middle + 1;
+			} else if(value > hash) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Maps a region of the file in little endian order
+	 *
+	 * @param channel The channel of the file
+	 * @param position The start of the region
+	 * @param size The size of the region
+	 *
+	 * @return The mapped region
+	 *
+	 * @throws IOException
+	 */
+	private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		if(size > Integer.MAX_VALUE || position + size > channel.size()) {
+			throw new IOException("Invalid segment region at " + position + " of " + size + " bytes");
+		}
+		return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+}
@@ -0,0 +1,426 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes index segments in the layout read by Segment. The file is written
+ * next to its destination and moved into place once it is complete, so a
+ * segment file is never seen half written
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class SegmentWriter implements Closeable {
+
+	/**
+	 * The size of the buffer used to write the file
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The path the segment ends up at
+	 */
+	private final Path path;
+
+	/**
+	 * The path the segment is written to
+	 */
+	private final Path temp;
+
+	/**
+	 * The channel of the file being written
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The buffer that is written to the channel when full
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * The buffer a postings list is compressed into
+	 */
+	private byte[] encoded = new byte[0];
+
+	/**
+	 * The position of the postings list of every hash in the data
+	 */
+	private int[] offsets;
+
+	/**
+	 * The Bloom filter of the hashes
+	 */
+	private BloomFilter filter;
+
+	/**
+	 * The number of postings lists written
+	 */
+	private int lists;
+
+	/**
+	 * The number of distinct hashes
+	 */
+	private int hashCount;
+
+	/**
+	 * The number of postings written
+	 */
+	private long postingCount;
+
+	/**
+	 * The number of bytes of compressed postings written
+	 */
+	private long dataSize;
+
+	/**
+	 * The generations of the segments the segment is merged from
+	 */
+	private long[] sources = new long[0];
+
+	/**
+	 * Creates the file for a segment
+	 *
+	 * @param path The path of the segment file
+	 *
+	 * @throws IOException
+	 */
+	private SegmentWriter(Path path) throws IOException {
+		this.path = path;
+		this.temp = Paths.get(path.toString() + ".tmp");
+		this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Writes the content of an in memory index to a segment file
+	 *
+	 * @param index The index to write
+	 * @param path The path of the segment file
+	 *
+	 * @return The opened segment
+	 *
+	 * @throws IOException
+	 */
+	public static Segment write(InvertedIndex index, Path path) throws IOException {
+		return write(index, path, StopList.EMPTY);
+	}
+
+	/**
+	 * Writes the content of an in memory index to a segment file without the stopped hashes
+	 *
+	 * @param index The index to write, it is not changed
+	 * @param path The path of the segment file
+	 * @param stopList The hashes that are left out
+	 *
+	 * @return The opened segment
+	 *
+	 * @throws IOException
+	 */
+	public static Segment write(InvertedIndex index, Path path, StopList stopList) throws IOException {
+		if(index.getPostingCount() > Segment.MAX_POSTINGS) {
+			throw new IOException("Too many postings for a single segment: " + index.getPostingCount());
+		}
+
+		// sort the used slots by their hash
+		long[] sorted = new long[index.size()];
+		int size = 0;
+		for(int slot = 0; slot < index.capacity(); ++slot) {
+			if(index.getPostings(slot) != null && !stopList.contains(index.getKey(slot))) {
+				sorted[size++] = (long) index.getKey(slot) << 32 | slot;
+			}
+		}
+		Arrays.sort(sorted, 0, size);
+
+		try(SegmentWriter writer = new SegmentWriter(path)) {
+			writer.begin(size);
+			for(int i = 0; i < size; ++i) {
+				writer.putHash((int) (sorted[i] >> 32));
+			}
+			writer.putFilter();
+			long[] postings = new long[0];
+			for(int i = 0; i < size; ++i) {
+				int slot = (int) sorted[i];
+				int count = index.getCount(slot);
+				if(postings.length < count) {
+					postings = new long[count];
+				}
+				System.arraycopy(index.getPostings(slot), 0, postings, 0, count);
+				writer.putPostings(postings, count);
+			}
+			writer.commit();
+		}
+		return new Segment(path);
+	}
+
+	/**
+	 * Merges several segments into a single segment
+	 *
+	 * @param segments The segments to merge
+	 * @param path The path of the merged segment file
+	 *
+	 * @return The opened merged segment
+	 *
+	 * @throws IOException
+	 */
+	public static Segment merge(List<Segment> segments, Path path) throws IOException {
+		return merge(segments, path, new long[0], StopList.EMPTY);
+	}
+
+	/**
+	 * Merges several segments into a single segment that names the segments it replaces
+	 * and leaves out the stopped hashes
+	 *
+	 * @param segments The segments to merge
+	 * @param path The path of the merged segment file
+	 * @param sources The generations of the merged segments, see Segment.getSources
+	 * @param stopList The hashes that are left out
+	 *
+	 * @return The opened merged segment
+	 *
+	 * @throws IOException
+	 */
+	public static Segment merge(List<Segment> segments, Path path, long[] sources, StopList stopList) throws IOException {
+		long postingCount = 0;
+		int maxHashes = 0;
+		for(Segment segment : segments) {
+			postingCount += segment.getPostingCount();
+			maxHashes += segment.getHashCount();
+		}
+		if(postingCount > Segment.MAX_POSTINGS) {
+			throw new IOException("Too many postings for a single segment: " + postingCount);
+		}
+
+		// merge the sorted hashes of all of the segments
+		int[] hashes = new int[maxHashes];
+		int size = 0;
+		int[] cursors = new int[segments.size()];
+		int next;
+		while((next = nextSegment(segments, cursors)) != -1) {
+			int hash = segments.get(next).getHash(cursors[next]);
+			if((size == 0 || hashes[size - 1] != hash) && !stopList.contains(hash)) {
+				hashes[size++] = hash;
+			}
+			cursors[next]++;
+		}
+
+		try(SegmentWriter writer = new SegmentWriter(path)) {
+			writer.sources = sources.clone();
+			writer.begin(size);
+			for(int i = 0; i < size; ++i) {
+				writer.putHash(hashes[i]);
+			}
+			writer.putFilter();
+
+			// merge again to gather the postings of every hash from all segments
+			PostingCollector collector = new PostingCollector();
+			Arrays.fill(cursors, 0);
+			for(int i = 0; i < size; ++i) {
+				collector.count = 0;
+				for(int k = 0; k < segments.size(); ++k) {
+					Segment segment = segments.get(k);
+
+					// skip the stopped hashes
+					while(cursors[k] < segment.getHashCount() && segment.getHash(cursors[k]) < hashes[i]) {
+						cursors[k]++;
+					}
+					if(cursors[k] < segment.getHashCount() && segment.getHash(cursors[k]) == hashes[i]) {
+						segment.getPostings(cursors[k]++, collector);
+					}
+				}
+				writer.putPostings(collector.postings, collector.count);
+			}
+			writer.commit();
+		}
+		return new Segment(path);
+	}
+
+	/**
+	 * Finds the segment with the smallest hash at its cursor
+	 *
+	 * @param segments The segments being merged
+	 * @param cursors The index of the next hash of every segment
+	 *
+	 * @return The index of the segment or -1 when all of the hashes are merged
+	 */
+	private static int nextSegment(List<Segment> segments, int[] cursors) {
+		int next = -1;
+		int smallest = 0;
+		for(int i = 0; i < cursors.length; ++i) {
+			if(cursors[i] < segments.get(i).getHashCount()) {
+				int hash = segments.get(i).getHash(cursors[i]);
+				if(next == -1 || hash < smallest) {
+					next = i;
+					smallest = hash;
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Leaves room for the header, which is written once the sizes are known
+	 *
+	 * @param hashCount The number of distinct hashes
+	 *
+	 * @throws IOException
+	 */
+	private void begin(int hashCount) throws IOException {
+		this.hashCount = hashCount;
+		this.offsets = new int[hashCount + 1];
+		this.filter = new BloomFilter(hashCount);
+		for(int i = 0; i < Segment.HEADER_SIZE; i += 4) {
+			putInt(0);
+		}
+	}
+
+	/**
+	 * Writes the next hash in ascending order and adds it to the filter
+	 *
+	 * @param hash The hash
+	 *
+	 * @throws IOException
+	 */
+	private void putHash(int hash) throws IOException {
+		filter.add(hash);
+		putInt(hash);
+	}
+
+	/**
+	 * Writes the filter after all of the hashes
+	 *
+	 * @throws IOException
+	 */
+	private void putFilter() throws IOException {
+		for(int i = 0; i < filter.getBlockCount() * BloomFilter.BLOCK_LONGS; ++i) {
+			putLong(filter.getWord(i));
+		}
+	}
+
+	/**
+	 * Compresses and writes the postings list of the next hash
+	 *
+	 * @param postings The packed postings, sorted in place
+	 * @param count The number of postings
+	 *
+	 * @throws IOException
+	 */
+	private void putPostings(long[] postings, int count) throws IOException {
+		if(encoded.length < PostingsCodec.getMaxSize(count)) {
+			encoded = new byte[PostingsCodec.getMaxSize(count)];
+		}
+		PostingsCodec.sort(postings, count);
+		int length = PostingsCodec.encode(postings, count, encoded);
+		if(dataSize + length > Integer.MAX_VALUE) {
+			throw new IOException("Too many postings for a single segment");
+		}
+		offsets[lists++] = (int) dataSize;
+		dataSize += length;
+		postingCount += count;
+
+		int position = 0;
+		while(position < length) {
+			if(!buffer.hasRemaining()) {
+				flush();
+			}
+			int chunk = Math.min(buffer.remaining(), length - position);
+			buffer.put(encoded, position, chunk);
+			position += chunk;
+		}
+	}
+
+	private void putInt(int value) throws IOException {
+		if(buffer.remaining() < 4) {
+			flush();
+		}
+		buffer.putInt(value);
+	}
+
+	private void putLong(long value) throws IOException {
+		if(buffer.remaining() < 8) {
+			flush();
+		}
+		buffer.putLong(value);
+	}
+
+	/**
+	 * Writes the buffer to the file
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Makes sure the file is on disk and moves it to its destination
+	 *
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		offsets[lists] = (int) dataSize;
+		for(int offset : offsets) {
+			putInt(offset);
+		}
+		for(long source : sources) {
+			putLong(source);
+		}
+		flush();
+
+		ByteBuffer header = ByteBuffer.allocate(Segment.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(Segment.MAGIC);
+		header.putInt(Segment.VERSION);
+		header.putInt(hashCount);
+		header.putInt(filter.getBlockCount());
+		header.putLong(postingCount);
+		header.putLong(dataSize);
+		header.putInt(sources.length);
+		header.flip();
+		while(header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		channel.force(true);
+		channel.close();
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Closes the file, a segment that was not committed is deleted
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		Files.deleteIfExists(temp);
+	}
+
+	/**
+	 * Gathers the postings of a hash from several segments
+	 */
+	private static class PostingCollector implements PostingConsumer {
+
+		private long[] postings = new long[16];
+		private int count;
+
+		@Override
+		public void accept(int trackId, int time) {
+			if(count == postings.length) {
+				postings = Arrays.copyOf(postings, count * 2);
+			}
+			postings[count++] = Posting.pack(trackId, time);
+		}
+
+	}
+
+}
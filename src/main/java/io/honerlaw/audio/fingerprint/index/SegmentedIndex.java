@@ -0,0 +1,487 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+
+/**
+ * An index that grows incrementally, in the style of a log structured merge tree.
+ *
+ * New tracks are added to a mutable in memory index. Once it holds enough postings
+ * it is frozen, which makes it visible to queries, and written to an immutable
+ * segment file in the background. Segments of a similar size are merged in the
+ * background as soon as there are enough of them (tiered compaction), so the number
+ * of segments stays logarithmic in the size of the catalog and every posting is
+ * rewritten a logarithmic number of times.
+ *
+ * Lookups fan out over the frozen in memory indexes and the segments of an immutable
+ * snapshot that is replaced whenever a flush or merge finishes, so queries never wait
+ * for writes. Tracks that are still in the mutable index are not visible until the
+ * index is frozen by reaching the threshold or by calling refresh.
+ *
+ * An index opened with a stop list leaves the stopped hashes out of every segment it
+ * writes or merges, so older segments lose them as they are merged.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class SegmentedIndex implements Index, Closeable {
+
+	/**
+	 * The default number of postings after which the in memory index is flushed
+	 */
+	public static final int FLUSH_POSTINGS = 1 << 22;
+
+	/**
+	 * The number of segments of the same tier that are merged together
+	 */
+	public static final int MERGE_FACTOR = 4;
+
+	/**
+	 * The extension of segment files
+	 */
+	private static final String EXTENSION = ".seg";
+
+	/**
+	 * The directory holding the segment files
+	 */
+	private final Path directory;
+
+	/**
+	 * The number of postings after which the in memory index is flushed
+	 */
+	private final int flushPostings;
+
+	/**
+	 * The hashes that are left out of the segments
+	 */
+	private final StopList stopList;
+
+	/**
+	 * Writes and merges segments one at a time
+	 */
+	private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "segment-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Guards replacing the snapshot
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * The in memory index new tracks are added to, guarded by this
+	 */
+	private InvertedIndex active = new InvertedIndex();
+
+	/**
+	 * Completed once the active index is written to a segment, guarded by this
+	 */
+	private CompletableFuture<Void> activeWritten = new CompletableFuture<Void>();
+
+	/**
+	 * The indexes and segments visible to lookups
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * The generation of the next segment file
+	 */
+	private long generation;
+
+	/**
+	 * Opens the segments in the given directory with the default flush threshold
+	 *
+	 * @param directory The directory holding the segment files
+	 *
+	 * @throws IOException
+	 */
+	public SegmentedIndex(Path directory) throws IOException {
+		this(directory, FLUSH_POSTINGS);
+	}
+
+	/**
+	 * Opens the segments in the given directory, creating it if it doesn't exist
+	 *
+	 * @param directory The directory holding the segment files
+	 * @param flushPostings The number of postings after which the in memory index is flushed
+	 *
+	 * @throws IOException
+	 */
+	public SegmentedIndex(Path directory, int flushPostings) throws IOException {
+		this(directory, flushPostings, StopList.EMPTY);
+	}
+
+	/**
+	 * Opens the segments in the given directory, creating it if it doesn't exist
+	 *
+	 * @param directory The directory holding the segment files
+	 * @param flushPostings The number of postings after which the in memory index is flushed
+	 * @param stopList The hashes that are left out of the segments that are written or merged
+	 *
+	 * @throws IOException
+	 */
+	public SegmentedIndex(Path directory, int flushPostings, StopList stopList) throws IOException {
+		this.directory = directory;
+		this.flushPostings = flushPostings;
+		this.stopList = stopList;
+		Files.createDirectories(directory);
+
+		// open the segments from oldest to newest and remove unfinished files, files
+		// that only end like a segment are not ours and are left alone
+		List<Segment> segments = new ArrayList<Segment>();
+		Set<Long> merged = new HashSet<Long>();
+		File[] files = directory.toFile().listFiles();
+		Arrays.sort(files);
+		for(File file : files) {
+			String name = file.getName();
+			if(name.endsWith(EXTENSION + ".tmp")) {
+				Files.delete(file.toPath());
+			} else if(getGeneration(file.toPath()) != -1) {
+				Segment segment = new Segment(file.toPath());
+				segments.add(segment);
+				for(long source : segment.getSources()) {
+					merged.add(source);
+				}
+				generation = Math.max(generation, getGeneration(file.toPath()) + 1);
+			}
+		}
+
+		// a merge that crashed before deleting its sources left them behind, their
+		// postings are already in the merged segment
+		Iterator<Segment> iterator = segments.iterator();
+		while(iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if(merged.contains(getGeneration(segment.getPath()))) {
+				iterator.remove();
+				Files.deleteIfExists(segment.getPath());
+			}
+		}
+		this.snapshot = new Snapshot(new InvertedIndex[0], segments.toArray(new Segment[segments.size()]));
+		background.execute(this::merge);
+	}
+
+	/**
+	 * Adds all of the hashes in a block to the index
+	 *
+	 * @param trackId The id of the fingerprinted track
+	 * @param block The hashes of the track
+	 */
+	public synchronized void add(int trackId, FingerprintBlock block) {
+		active.add(trackId, block);
+		if(active.getPostingCount() >= flushPostings) {
+			freeze();
+		}
+	}
+
+	/**
+	 * Gets a future that is completed once the tracks added so far, and the ones
+	 * added until the in memory index is frozen next, are written to a segment. It
+	 * completes on the background thread, exceptionally when the segment could not
+	 * be written
+	 *
+	 * @return The future of the in memory index
+	 */
+	public synchronized CompletableFuture<Void> whenWritten() {
+		return activeWritten;
+	}
+
+	/**
+	 * Makes all of the tracks added so far visible to lookups
+	 */
+	public synchronized void refresh() {
+		if(active.size() > 0) {
+			freeze();
+		}
+	}
+
+	/**
+	 * Makes all of the tracks added so far visible and waits until they are written to segments
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		refresh();
+		try {
+			background.submit(() -> {}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public int lookup(int hash, PostingConsumer consumer) {
+		Snapshot snapshot = this.snapshot;
+		int count = 0;
+		for(Segment segment : snapshot.segments) {
+
+			// the filter rules out most segments without reading their hashes
+			if(segment.mightContain(hash)) {
+				count += segment.lookup(hash, consumer);
+			}
+		}
+		for(InvertedIndex index : snapshot.frozen) {
+			count += index.lookup(hash, consumer);
+		}
+		return count;
+	}
+
+	@Override
+	public int count(int hash) {
+		Snapshot snapshot = this.snapshot;
+		int count = 0;
+		for(Segment segment : snapshot.segments) {
+			if(segment.mightContain(hash)) {
+				count += segment.count(hash);
+			}
+		}
+		for(InvertedIndex index : snapshot.frozen) {
+			count += index.count(hash);
+		}
+		return count;
+	}
+
+	@Override
+	public boolean mightContain(int hash) {
+		Snapshot snapshot = this.snapshot;
+		for(Segment segment : snapshot.segments) {
+			if(segment.mightContain(hash)) {
+				return true;
+			}
+		}
+		for(InvertedIndex index : snapshot.frozen) {
+			if(index.mightContain(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @return The directory holding the segment files
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 *
+	 * @return The segments currently visible to lookups
+	 */
+	public List<Segment> getSegments() {
+		return Collections.unmodifiableList(Arrays.asList(snapshot.segments));
+	}
+
+	/**
+	 * Writes the remaining tracks to a segment and stops the background work
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		background.shutdown();
+		try {
+			background.awaitTermination(1, TimeUnit.HOURS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Makes the active index visible to lookups and schedules it to be written
+	 */
+	private void freeze() {
+		InvertedIndex frozen = active;
+		CompletableFuture<Void> written = activeWritten;
+		active = new InvertedIndex();
+		activeWritten = new CompletableFuture<Void>();
+		synchronized(lock) {
+			snapshot = snapshot.with(frozen);
+		}
+		background.execute(() -> write(frozen, written));
+	}
+
+	/**
+	 * Writes a frozen index to a segment, runs on the background thread
+	 *
+	 * @param frozen The frozen index to write
+	 * @param written Completed once the segment is written
+	 */
+	private void write(InvertedIndex frozen, CompletableFuture<Void> written) {
+		try {
+			Segment segment = SegmentWriter.write(frozen, nextPath(), stopList);
+			synchronized(lock) {
+				snapshot = snapshot.replace(frozen, segment);
+			}
+			written.complete(null);
+			merge();
+		} catch (IOException e) {
+			// the frozen index stays visible to lookups
+			e.printStackTrace();
+			written.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Merges segments until no tier has enough segments left, runs on the background thread
+	 */
+	private void merge() {
+		List<Segment> group;
+		while((group = getMergeGroup()) != null) {
+			try {
+				long[] sources = new long[group.size()];
+				for(int i = 0; i < sources.length; ++i) {
+					sources[i] = getGeneration(group.get(i).getPath());
+				}
+				Segment merged = SegmentWriter.merge(group, nextPath(), sources, stopList);
+				synchronized(lock) {
+					snapshot = snapshot.merge(group, merged);
+				}
+
+				// the merged segment names the old ones, so a crash before they are gone
+				// doesn't count their postings twice, and their mappings stay valid for
+				// running lookups
+				for(Segment segment : group) {
+					Files.deleteIfExists(segment.getPath());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the oldest segments of the lowest tier that has enough segments to merge
+	 * into a segment that is not too large
+	 *
+	 * @return The segments to merge or null when there is nothing to merge
+	 */
+	private List<Segment> getMergeGroup() {
+		Segment[] segments = snapshot.segments;
+		for(int tier = 0; tier < 32; ++tier) {
+			List<Segment> candidates = new ArrayList<Segment>();
+			for(Segment segment : segments) {
+				if(getTier(segment) == tier) {
+					candidates.add(segment);
+				}
+			}
+
+			// segments that would make too large a segment together are left for
+			// good, the tier moves on to the next ones and the other tiers still merge
+			for(int from = 0; from + MERGE_FACTOR <= candidates.size(); ++from) {
+				List<Segment> group = candidates.subList(from, from + MERGE_FACTOR);
+				long postings = 0;
+				for(Segment segment : group) {
+					postings += segment.getPostingCount();
+				}
+				if(postings <= Segment.MAX_POSTINGS) {
+					return new ArrayList<Segment>(group);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the tier of a segment, a segment with fewer postings than the flush threshold
+	 * times the merge factor is in tier 0 and every tier is merge factor times larger
+	 *
+	 * @param segment The segment
+	 * @return The tier of the segment
+	 */
+	private int getTier(Segment segment) {
+		int tier = 0;
+		long limit = (long) flushPostings * MERGE_FACTOR;
+		while(segment.getPostingCount() >= limit) {
+			limit *= MERGE_FACTOR;
+			tier++;
+		}
+		return tier;
+	}
+
+	/**
+	 * Gets the generation a segment file is named after
+	 *
+	 * @param path The path of the file
+	 * @return The generation or -1 when the file is not named like a segment
+	 */
+	private static long getGeneration(Path path) {
+		String name = path.getFileName().toString();
+		if(!name.matches("[0-9]{1,18}" + Pattern.quote(EXTENSION))) {
+			return -1;
+		}
+		return Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+	}
+
+	/**
+	 *
+	 * @return The path of the next segment file
+	 */
+	private synchronized Path nextPath() {
+		return directory.resolve(String.format("%016d", generation++) + EXTENSION);
+	}
+
+	/**
+	 * The indexes and segments visible to lookups at one point in time, never modified
+	 */
+	private static class Snapshot {
+
+		private final InvertedIndex[] frozen;
+		private final Segment[] segments;
+
+		Snapshot(InvertedIndex[] frozen, Segment[] segments) {
+			this.frozen = frozen;
+			this.segments = segments;
+		}
+
+		Snapshot with(InvertedIndex index) {
+			InvertedIndex[] frozen = Arrays.copyOf(this.frozen, this.frozen.length + 1);
+			frozen[frozen.length - 1] = index;
+			return new Snapshot(frozen, segments);
+		}
+
+		Snapshot replace(InvertedIndex index, Segment segment) {
+			List<InvertedIndex> frozen = new ArrayList<InvertedIndex>(Arrays.asList(this.frozen));
+			frozen.remove(index);
+			Segment[] segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+			segments[segments.length - 1] = segment;
+			return new Snapshot(frozen.toArray(new InvertedIndex[frozen.size()]), segments);
+		}
+
+		Snapshot merge(List<Segment> group, Segment merged) {
+			List<Segment> segments = new ArrayList<Segment>();
+			for(Segment segment : this.segments) {
+				if(segment == group.get(0)) {
+					segments.add(merged);
+				} else if(!group.contains(segment)) {
+					segments.add(segment);
+				}
+			}
+			return new Snapshot(frozen, segments.toArray(new Segment[segments.size()]));
+		}
+
+	}
+
+}
@@ -0,0 +1,213 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+
+/**
+ * An in memory index split into shards by the high bits of the mixed hash. Every
+ * hash belongs to exactly one shard, so shards never share state: tracks can be
+ * loaded into all shards in parallel without any locking, and the hashes of a
+ * query can be looked up in parallel one shard per task (see ShardedMatcher).
+ *
+ * The shard is picked with the high bits of the mixed hash while every shard
+ * picks its slot with the low bits, so the two don't interfere.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class ShardedIndex implements Index {
+
+	/**
+	 * The shards
+	 */
+	private final InvertedIndex[] shards;
+
+	/**
+	 * The number of bits of the mixed hash used to pick the shard
+	 */
+	private final int bits;
+
+	/**
+	 * Creates an index with about one shard per core
+	 */
+	public ShardedIndex() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates an index with at least the given number of shards
+	 *
+	 * @param shardCount The number of shards, rounded up to a power of two
+	 */
+	public ShardedIndex(int shardCount) {
+		if(shardCount < 1 || shardCount > 1 << 16) {
+			throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+		}
+		this.bits = 32 - Integer.numberOfLeadingZeros(shardCount - 1);
+		this.shards = new InvertedIndex[1 << bits];
+		for(int i = 0; i < shards.length; ++i) {
+			shards[i] = new InvertedIndex();
+		}
+	}
+
+	/**
+	 * Adds all of the hashes in a block to the index
+	 *
+	 * @param trackId The id of the fingerprinted track
+	 * @param block The hashes of the track
+	 */
+	public void add(int trackId, FingerprintBlock block) {
+		for(int i = 0; i < block.size(); ++i) {
+			int hash = block.getHash(i);
+			shards[getShard(hash)].add(hash, trackId, block.getTime(i));
+		}
+	}
+
+	/**
+	 * Adds many tracks at once, the postings are sorted by shard in a single pass
+	 * and every shard is then loaded from its own slice by its own task
+	 *
+	 * @param trackIds The ids of the tracks
+	 * @param blocks The hashes of every track
+	 * @param pool The pool to load the shards in
+	 */
+	public void addAll(int[] trackIds, FingerprintBlock[] blocks, ForkJoinPool pool) {
+
+		// count the postings of every shard
+		int[] starts = new int[shards.length + 1];
+		long total = 0;
+		for(FingerprintBlock block : blocks) {
+			for(int i = 0; i < block.size(); ++i) {
+				starts[getShard(block.getHash(i)) + 1]++;
+			}
+			total += block.size();
+		}
+		if(total > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many postings to add at once: " + total);
+		}
+		for(int shard = 0; shard < shards.length; ++shard) {
+			starts[shard + 1] += starts[shard];
+		}
+
+		// place every posting in the slice of its shard, in the order of the tracks
+		Postings postings = new Postings((int) total);
+		int[] cursors = Arrays.copyOf(starts, shards.length);
+		for(int t = 0; t < blocks.length; ++t) {
+			FingerprintBlock block = blocks[t];
+			for(int i = 0; i < block.size(); ++i) {
+				int hash = block.getHash(i);
+				int position = cursors[getShard(hash)]++;
+				postings.hashes[position] = hash;
+				postings.trackIds[position] = trackIds[t];
+				postings.times[position] = block.getTime(i);
+			}
+		}
+		pool.invoke(new LoadTask(postings, starts, 0, shards.length));
+	}
+
+	@Override
+	public int lookup(int hash, PostingConsumer consumer) {
+		return shards[getShard(hash)].lookup(hash, consumer);
+	}
+
+	@Override
+	public int count(int hash) {
+		return shards[getShard(hash)].count(hash);
+	}
+
+	@Override
+	public boolean mightContain(int hash) {
+		return shards[getShard(hash)].mightContain(hash);
+	}
+
+	/**
+	 *
+	 * @return The number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @param hash The packed fingerprint hash
+	 * @return The shard the hash belongs to
+	 */
+	public int getShard(int hash) {
+		return bits == 0 ? 0 : InvertedIndex.mix(hash) >>> (32 - bits);
+	}
+
+	/**
+	 * @param shard The index of the shard
+	 * @return The shard
+	 */
+	InvertedIndex getIndex(int shard) {
+		return shards[shard];
+	}
+
+	/**
+	 *
+	 * @return The total number of postings
+	 */
+	public long getPostingCount() {
+		long count = 0;
+		for(InvertedIndex shard : shards) {
+			count += shard.getPostingCount();
+		}
+		return count;
+	}
+
+	/**
+	 * The postings of many tracks sorted by shard
+	 */
+	private static class Postings {
+
+		private final int[] hashes;
+		private final int[] trackIds;
+		private final int[] times;
+
+		Postings(int size) {
+			this.hashes = new int[size];
+			this.trackIds = new int[size];
+			this.times = new int[size];
+		}
+
+	}
+
+	/**
+	 * Loads a range of shards, every task that loads a single shard adds the
+	 * postings of its own slice
+	 */
+	private class LoadTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Postings postings;
+		private final int[] starts;
+		private final int from;
+		private final int to;
+
+		LoadTask(Postings postings, int[] starts, int from, int to) {
+			this.postings = postings;
+			this.starts = starts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LoadTask(postings, starts, from, middle), new LoadTask(postings, starts, middle, to));
+				return;
+			}
+			InvertedIndex shard = shards[from];
+			for(int i = starts[from]; i < starts[from + 1]; ++i) {
+				shard.add(postings.hashes[i], postings.trackIds[i], postings.times[i]);
+			}
+		}
+
+	}
+
+}
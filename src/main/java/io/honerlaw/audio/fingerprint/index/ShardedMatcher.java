@@ -0,0 +1,172 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import io.honerlaw.audio.fingerprint.AudioFile;
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+
+/**
+ * Identifies a query against a sharded index by looking up the hashes of every
+ * shard in parallel. The hashes of the query are grouped by shard, every shard
+ * counts its votes into its own counter and the counters are merged at the end.
+ *
+ * All of the hashes are looked up, the early stop of Matcher needs the votes of
+ * every shard and would serialize the lookups again. Long queries gain the most.
+ *
+ * A matcher reuses its counters between queries, so it is not thread safe.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class ShardedMatcher {
+
+	/**
+	 * The index to look the hashes up in
+	 */
+	private final ShardedIndex index;
+
+	/**
+	 * The pool the shards are looked up in
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * The number of votes an alignment needs to be a match
+	 */
+	private final int minVotes;
+
+	/**
+	 * The votes of every shard
+	 */
+	private final ShardVotes[] votes;
+
+	/**
+	 * Creates a matcher with the default number of votes for a match
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param pool The pool the shards are looked up in
+	 */
+	public ShardedMatcher(ShardedIndex index, ForkJoinPool pool) {
+		this(index, pool, Matcher.MIN_VOTES);
+	}
+
+	/**
+	 * Creates a matcher
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param pool The pool the shards are looked up in
+	 * @param minVotes The number of votes an alignment needs to be a match
+	 */
+	public ShardedMatcher(ShardedIndex index, ForkJoinPool pool, int minVotes) {
+		this.index = index;
+		this.pool = pool;
+		this.minVotes = minVotes;
+		this.votes = new ShardVotes[index.getShardCount()];
+		for(int i = 0; i < votes.length; ++i) {
+			votes[i] = new ShardVotes();
+		}
+	}
+
+	/**
+	 * Identifies the given audio file
+	 *
+	 * @param audioFile The query audio file
+	 *
+	 * @return The matches ordered by votes, best first
+	 */
+	public List<Match> match(AudioFile audioFile) {
+		return match(audioFile.getFingerPrint().getHashes());
+	}
+
+	/**
+	 * Identifies the given query hashes
+	 *
+	 * @param query The hashes of the query
+	 *
+	 * @return The matches ordered by votes, best first
+	 */
+	public List<Match> match(FingerprintBlock query) {
+		int size = query.size();
+
+		// group the query hashes by shard with a counting sort
+		int[] starts = new int[votes.length + 1];
+		int[] shards = new int[size];
+		for(int i = 0; i < size; ++i) {
+			shards[i] = index.getShard(query.getHash(i));
+			starts[shards[i] + 1]++;
+		}
+		for(int i = 0; i < votes.length; ++i) {
+			starts[i + 1] += starts[i];
+		}
+		int[] order = new int[size];
+		int[] positions = new int[votes.length];
+		for(int i = 0; i < size; ++i) {
+			order[starts[shards[i]] + positions[shards[i]]++] = i;
+		}
+
+		pool.invoke(new LookupTask(query, order, starts, 0, votes.length));
+
+		// merge the votes of every shard into the first
+		VoteCounter total = votes[0].votes;
+		for(int i = 1; i < votes.length; ++i) {
+			total.addAll(votes[i].votes);
+		}
+		return Matcher.getMatches(total, minVotes, size);
+	}
+
+	/**
+	 * Counts the votes of the postings of a single shard
+	 */
+	private static class ShardVotes implements PostingConsumer {
+
+		private final VoteCounter votes = new VoteCounter();
+		private int queryTime;
+
+		@Override
+		public void accept(int trackId, int time) {
+			votes.increment(VoteCounter.pack(trackId, time - queryTime));
+		}
+
+	}
+
+	/**
+	 * Looks up the query hashes of a range of shards
+	 */
+	private class LookupTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FingerprintBlock query;
+		private final int[] order;
+		private final int[] starts;
+		private final int from;
+		private final int to;
+
+		LookupTask(FingerprintBlock query, int[] order, int[] starts, int from, int to) {
+			this.query = query;
+			this.order = order;
+			this.starts = starts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LookupTask(query, order, starts, from, middle), new LookupTask(query, order, starts, middle, to));
+				return;
+			}
+			ShardVotes shard = votes[from];
+			InvertedIndex shardIndex = index.getIndex(from);
+			shard.votes.clear();
+			for(int i = starts[from]; i < starts[from + 1]; ++i) {
+				shard.queryTime = query.getTime(order[i]);
+				shardIndex.lookup(query.getHash(order[i]), shard);
+			}
+		}
+
+	}
+
+}
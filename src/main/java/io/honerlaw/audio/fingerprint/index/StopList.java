@@ -0,0 +1,164 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The hashes that occur in too many tracks to tell them apart. Silence, hum and
+ * common chords produce the same hashes in a large share of the catalog, their
+ * postings lists are the longest in the index and dominate the time of a lookup
+ * while their votes are spread over almost every track.
+ *
+ * A stop list is built from the document frequency of every hash, the number of
+ * distinct tracks it occurs in. The hashes can then be removed from the index
+ * before it is written (see InvertedIndex.remove), left out of the segments of a
+ * SegmentedIndex opened with the stop list, and are skipped by the matchers.
+ *
+ * The statistics are only gathered from a single InvertedIndex. For a catalog
+ * that lives in segments, build the stop list from a representative sample of
+ * the tracks loaded into memory and save it next to the segments.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class StopList {
+
+	/**
+	 * An empty stop list
+	 */
+	public static final StopList EMPTY = new StopList(new int[0]);
+
+	/**
+	 * The stopped hashes in ascending order
+	 */
+	private final int[] hashes;
+
+	/**
+	 * Creates a stop list of the given hashes
+	 *
+	 * @param hashes The hashes to stop
+	 */
+	public StopList(int[] hashes) {
+		this.hashes = hashes.clone();
+		Arrays.sort(this.hashes);
+	}
+
+	/**
+	 * Collects the hashes of an index that occur in more than the given number of tracks,
+	 * the postings of a track may be anywhere in a list
+	 *
+	 * @param index The index to gather the statistics from
+	 * @param maxTracks The largest number of tracks a hash may occur in
+	 *
+	 * @return The stop list
+	 */
+	public static StopList build(InvertedIndex index, int maxTracks) {
+		int[] stopped = new int[16];
+		int[] trackIds = new int[16];
+		int size = 0;
+		for(int slot = 0; slot < index.capacity(); ++slot) {
+			long[] postings = index.getPostings(slot);
+			int count = index.getCount(slot);
+			if(postings == null || count <= maxTracks) {
+				continue;
+			}
+
+			// count the distinct tracks of the hash, sorted so equal ids are next to each other
+			if(trackIds.length < count) {
+				trackIds = new int[Math.max(count, trackIds.length * 2)];
+			}
+			for(int i = 0; i < count; ++i) {
+				trackIds[i] = Posting.getTrackId(postings[i]);
+			}
+			Arrays.sort(trackIds, 0, count);
+			int tracks = 0;
+			for(int i = 0; i < count && tracks <= maxTracks; ++i) {
+				if(i == 0 || trackIds[i] != trackIds[i - 1]) {
+					tracks++;
+				}
+			}
+			if(tracks > maxTracks) {
+				if(size == stopped.length) {
+					stopped = Arrays.copyOf(stopped, size * 2);
+				}
+				stopped[size++] = index.getKey(slot);
+			}
+		}
+		return new StopList(Arrays.copyOf(stopped, size));
+	}
+
+	/**
+	 * Collects the hashes of an index that occur in more than the given share of the tracks
+	 *
+	 * @param index The index to gather the statistics from
+	 * @param trackCount The number of tracks in the index
+	 * @param maxFrequency The largest share of the tracks a hash may occur in, between 0 and 1,
+	 * rounded up to at least one track
+	 *
+	 * @return The stop list
+	 */
+	public static StopList build(InvertedIndex index, int trackCount, double maxFrequency) {
+		return build(index, Math.max(1, (int) Math.ceil(trackCount * maxFrequency)));
+	}
+
+	/**
+	 * @param hash The packed fingerprint hash
+	 * @return Whether the hash is stopped
+	 */
+	public boolean contains(int hash) {
+		return hashes.length > 0 && Arrays.binarySearch(hashes, hash) >= 0;
+	}
+
+	/**
+	 *
+	 * @return The number of stopped hashes
+	 */
+	public int size() {
+		return hashes.length;
+	}
+
+	/**
+	 * Writes the stop list to a file
+	 *
+	 * @param path The path of the file
+	 *
+	 * @throws IOException
+	 */
+	public void save(Path path) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(hashes.length);
+			for(int hash : hashes) {
+				out.writeInt(hash);
+			}
+		}
+	}
+
+	/**
+	 * Reads a stop list written by save
+	 *
+	 * @param path The path of the file
+	 *
+	 * @return The stop list
+	 *
+	 * @throws IOException
+	 */
+	public static StopList load(Path path) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			int size = in.readInt();
+			if(size < 0) {
+				throw new IOException("Invalid stop list size: " + size);
+			}
+			int[] hashes = new int[size];
+			for(int i = 0; i < size; ++i) {
+				hashes[i] = in.readInt();
+			}
+			return new StopList(hashes);
+		}
+	}
+
+}
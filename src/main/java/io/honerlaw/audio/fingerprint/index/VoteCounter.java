@@ -0,0 +1,201 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.Arrays;
+
+/**
+ * Counts votes per alignment of a query with a track. An alignment is the
+ * track id and the offset between the track and the query packed into a
+ * long. The counts are kept in an open addressing table and the used slots
+ * are remembered, so clearing only touches the slots that were used and a
+ * counter can be reused for every query without allocating
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class VoteCounter {
+	
+	/**
+	 * The initial number of slots in the table, must be a power of two
+	 */
+	private static final int INITIAL_CAPACITY = 4096;
+	
+	/**
+	 * The alignment in every slot
+	 */
+	private long[] keys;
+	
+	/**
+	 * The votes in every slot, 0 when the slot is empty
+	 */
+	private int[] counts;
+	
+	/**
+	 * The used slots in the order they were first used
+	 */
+	private int[] used;
+	
+	/**
+	 * The number of used slots
+	 */
+	private int size;
+	
+	/**
+	 * Used to wrap a position into the table
+	 */
+	private int mask;
+	
+	/**
+	 * Creates an empty counter
+	 */
+	public VoteCounter() {
+		this.keys = new long[INITIAL_CAPACITY];
+		this.counts = new int[INITIAL_CAPACITY];
+		this.used = new int[INITIAL_CAPACITY / 2 + 1];
+		this.mask = INITIAL_CAPACITY - 1;
+	}
+	
+	/**
+	 * Packs a track id and an offset into an alignment
+	 * 
+	 * @param trackId The id of the track
+	 * @param offset The anchor time in the track minus the anchor time in the query
+	 * 
+	 * @return The packed alignment
+	 */
+	public static long pack(int trackId, int offset) {
+		return Posting.pack(trackId, offset);
+	}
+	
+	public static int getTrackId(long alignment) {
+		return Posting.getTrackId(alignment);
+	}
+	
+	public static int getOffset(long alignment) {
+		return Posting.getTime(alignment);
+	}
+	
+	/**
+	 * Adds a vote for an alignment
+	 * 
+	 * @param alignment The packed alignment
+	 * 
+	 * @return The number of votes for the alignment
+	 */
+	public int increment(long alignment) {
+		return add(alignment, 1);
+	}
+	
+	/**
+	 * Adds votes for an alignment
+	 * 
+	 * @param alignment The packed alignment
+	 * @param votes The number of votes to add, must be positive
+	 * 
+	 * @return The number of votes for the alignment
+	 */
+	public int add(long alignment, int votes) {
+		int slot = slot(alignment);
+		if(counts[slot] == 0) {
+			keys[slot] = alignment;
+			used[size++] = slot;
+		}
+		int total = counts[slot] += votes;
+		
+		// keep the table at most half full so probe sequences stay short
+		if(size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		return total;
+	}
+	
+	/**
+	 * Adds all of the votes of another counter
+	 * 
+	 * @param other The counter to add
+	 */
+	public void addAll(VoteCounter other) {
+		for(int i = 0; i < other.size; ++i) {
+			add(other.getAlignment(i), other.getVotes(i));
+		}
+	}
+	
+	/**
+	 * 
+	 * @param alignment The packed alignment
+	 * @return The number of votes for the alignment
+	 */
+	public int get(long alignment) {
+		return counts[slot(alignment)];
+	}
+	
+	/**
+	 * 
+	 * @return The number of alignments with votes
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * 
+	 * @param index The index of the alignment, in the order the alignments got their first vote
+	 * @return The packed alignment
+	 */
+	public long getAlignment(int index) {
+		return keys[used[index]];
+	}
+	
+	/**
+	 * 
+	 * @param index The index of the alignment, in the order the alignments got their first vote
+	 * @return The number of votes for the alignment
+	 */
+	public int getVotes(int index) {
+		return counts[used[index]];
+	}
+	
+	/**
+	 * Removes all of the votes
+	 */
+	public void clear() {
+		for(int i = 0; i < size; ++i) {
+			counts[used[i]] = 0;
+		}
+		size = 0;
+	}
+	
+	/**
+	 * Finds the slot that holds the given alignment or the empty slot it should go in
+	 * 
+	 * @param alignment The packed alignment
+	 * @return The slot
+	 */
+	private int slot(long alignment) {
+		int slot = InvertedIndex.mix((int) (alignment ^ (alignment >>> 32) * 0x9E3779B9)) & mask;
+		while(counts[slot] != 0 && keys[slot] != alignment) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Moves all of the used slots into a table of the given size
+	 * 
+	 * @param capacity The new number of slots, must be a power of two
+	 */
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		int[] oldUsed = used;
+		this.keys = new long[capacity];
+		this.counts = new int[capacity];
+		this.used = Arrays.copyOf(used, capacity / 2 + 1);
+		this.mask = capacity - 1;
+		for(int i = 0; i < size; ++i) {
+			int slot = slot(oldKeys[oldUsed[i]]);
+			keys[slot] = oldKeys[oldUsed[i]];
+			counts[slot] = oldCounts[oldUsed[i]];
+			used[i] = slot;
+		}
+	}
+
+}
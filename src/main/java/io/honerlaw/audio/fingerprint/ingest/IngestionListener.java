@@ -0,0 +1,31 @@
+package io.honerlaw.audio.fingerprint.ingest;
+
+import java.nio.file.Path;
+
+/**
+ * Notified by the ingestion service about every file it handled, called on the
+ * thread of the stage that finished or failed the file
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface IngestionListener {
+
+	/**
+	 * Called once the hashes of a file were written to the segments of the index
+	 * and the file was moved to the completed directory
+	 *
+	 * @param trackId The id the track was indexed under
+	 * @param fileHash The hash of the content of the file
+	 * @param file The file in the completed directory
+	 */
+	void onCompleted(int trackId, String fileHash, Path file);
+
+	/**
+	 * Called when a file could not be ingested, the file is left in the processing directory
+	 *
+	 * @param file The file in the processing directory
+	 * @param cause The reason the file failed
+	 */
+	void onFailed(Path file, Exception cause);
+
+}
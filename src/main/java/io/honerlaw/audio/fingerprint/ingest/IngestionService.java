@@ -0,0 +1,621 @@
+package io.honerlaw.audio.fingerprint.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.honerlaw.audio.fingerprint.AudioFile;
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.index.SegmentedIndex;
+import io.honerlaw.audio.fingerprint.util.Directory;
+import io.honerlaw.audio.fingerprint.util.VirtualThreads;
+
+/**
+ * Loads the audio files dropped into the pending directory into an index.
+ *
+ * A watcher thread claims every new file by moving it into the processing
+ * directory, the move is atomic so a file is claimed only once even when several
+ * services watch the same directory. The claimed files then go through four
+ * stages, each with its own threads, connected by bounded queues:
+ *
+ * decode - converts the file with ffmpeg, hashing it on the way in, and maps the
+ * WAV file (I/O and ffmpeg)
+ * spectrogram - calculates the spectrogram (CPU)
+ * fingerprint - finds the peaks and hashes them (CPU)
+ * index - adds the hashes to the index under a new track id (a single thread)
+ *
+ * While one file waits on the disk or on ffmpeg the others keep the cores busy.
+ * The decode stage runs on virtual threads when the JDK has them (see
+ * VirtualThreads), so many files can wait on slow storage at once, while the cpu
+ * stages keep a fixed number of platform threads.
+ * A full queue blocks the stage in front of it, so a slow stage holds back the
+ * ones before it instead of piling up spectrograms in memory; the queues are
+ * small because a queued spectrogram of a song takes tens of megabytes.
+ *
+ * Files should be written elsewhere and moved into the pending directory, a file
+ * that is still being written when it is claimed is ingested incomplete. Files
+ * that fail are left in the processing directory and reported to the listener,
+ * files left in the processing directory by a service that stopped are ingested
+ * again when the next service starts.
+ *
+ * A file is only moved to the completed directory once its postings are written
+ * to a segment. The index writes its segments when it holds enough postings, and
+ * the service refreshes it at a fixed interval so a trickle of files doesn't wait
+ * for long; once a segment is written all of the files in it are moved together.
+ * The track ids are reserved in blocks in a state file next to the segments, so
+ * ids are never handed out twice, and the files of the last written segment are
+ * recorded in the same file before they are moved: a service that stopped in
+ * between moves them when it starts instead of ingesting them again. Only a crash
+ * between writing a segment and the state file, which takes a moment, ingests
+ * its files a second time under new ids.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class IngestionService implements Closeable {
+
+	/**
+	 * The default number of files that can wait in front of a stage
+	 */
+	public static final int QUEUE_CAPACITY = 4;
+
+	/**
+	 * The default number of threads of the decode stage
+	 */
+	public static final int IO_THREADS = 2;
+
+	/**
+	 * The default number of threads of the decode stage when they are virtual
+	 * threads, a waiting virtual thread costs next to nothing
+	 */
+	public static final int VIRTUAL_IO_THREADS = 256;
+
+	/**
+	 * The name of the state file in the directory of the index
+	 */
+	public static final String STATE_FILE = "ingest.state";
+
+	/**
+	 * The default longest time in milliseconds an ingested file waits for its segment to be written
+	 */
+	public static final long FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * The number of track ids reserved in the state file at once
+	 */
+	private static final int RESERVED_TRACK_IDS = 1024;
+
+	/**
+	 * The index the hashes are added to
+	 */
+	private final SegmentedIndex index;
+
+	/**
+	 * Notified about every ingested file
+	 */
+	private final IngestionListener listener;
+
+	/**
+	 * The directory new files are dropped into
+	 */
+	private final Path pending;
+
+	/**
+	 * The directory files are held in while they are ingested
+	 */
+	private final Path processing;
+
+	/**
+	 * The directory ingested files are moved to
+	 */
+	private final Path completed;
+
+	/**
+	 * The file the next track id and the last flushed batch are kept in
+	 */
+	private final Path state;
+
+	/**
+	 * The stages from first to last
+	 */
+	private final Stage decode;
+	private final Stage spectrogram;
+	private final Stage fingerprint;
+	private final Stage write;
+
+	/**
+	 * The longest time in milliseconds an ingested file waits for its segment to be written
+	 */
+	private final long flushIntervalMillis;
+
+	/**
+	 * The track id of the next ingested file, only used by the index stage once started
+	 */
+	private int nextTrackId;
+
+	/**
+	 * The first track id that is not reserved in the state file, guarded by this
+	 */
+	private int reservedTrackId;
+
+	/**
+	 * The files of the last written segment that are recorded in the state file, guarded by this
+	 */
+	private List<Job> written = Collections.emptyList();
+
+	/**
+	 * The future of the in memory index the index stage adds to and the files added
+	 * to it, only used by the index stage
+	 */
+	private CompletableFuture<Void> unwritten;
+	private List<Job> unwrittenJobs;
+
+	/**
+	 * The thread that refreshes the index at the flush interval
+	 */
+	private Thread flusher;
+
+	/**
+	 * Watches the pending directory
+	 */
+	private WatchService watchService;
+
+	/**
+	 * The thread that claims the pending files
+	 */
+	private Thread watcher;
+
+	/**
+	 * Creates a service over the directories of util.Directory with the default
+	 * number of threads, the cpu stages get a thread per core and the decode stage
+	 * gets many virtual threads when the JDK has them
+	 *
+	 * @param index The index the hashes are added to
+	 * @param firstTrackId The track id of the first ingested file, unless the state file holds a later one
+	 * @param listener Notified about every ingested file
+	 */
+	public IngestionService(SegmentedIndex index, int firstTrackId, IngestionListener listener) {
+		this(index, firstTrackId, listener, Paths.get(Directory.PENDING), Paths.get(Directory.PROCESSING), Paths.get(Directory.COMPLETED),
+				VirtualThreads.isAvailable() ? VIRTUAL_IO_THREADS : IO_THREADS, Runtime.getRuntime().availableProcessors(), QUEUE_CAPACITY,
+				FLUSH_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Creates a service
+	 *
+	 * @param index The index the hashes are added to
+	 * @param firstTrackId The track id of the first ingested file, unless the state file holds a later one
+	 * @param listener Notified about every ingested file
+	 * @param pending The directory new files are dropped into
+	 * @param processing The directory files are held in while they are ingested
+	 * @param completed The directory ingested files are moved to
+	 * @param ioThreads The number of threads of the decode stage, virtual threads when the JDK has them
+	 * @param cpuThreads The number of threads of the spectrogram and fingerprint stages
+	 * @param queueCapacity The number of files that can wait in front of a stage
+	 * @param flushIntervalMillis The longest time in milliseconds an ingested file waits for its segment to be written
+	 */
+	public IngestionService(SegmentedIndex index, int firstTrackId, IngestionListener listener, Path pending, Path processing, Path completed,
+			int ioThreads, int cpuThreads, int queueCapacity, long flushIntervalMillis) {
+		this.index = index;
+		this.nextTrackId = firstTrackId;
+		this.listener = listener;
+		this.pending = pending;
+		this.processing = processing;
+		this.completed = completed;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.state = index.getDirectory().resolve(STATE_FILE);
+		this.write = new Stage(VirtualThreads.newPlatformFactory("ingest-index"), 1, queueCapacity, this::write);
+		this.fingerprint = new Stage(VirtualThreads.newPlatformFactory("ingest-fingerprint"), cpuThreads, queueCapacity, this::fingerprint);
+		this.spectrogram = new Stage(VirtualThreads.newPlatformFactory("ingest-spectrogram"), cpuThreads, queueCapacity, this::spectrogram);
+		this.decode = new Stage(VirtualThreads.newFactory("ingest-decode"), ioThreads, queueCapacity, this::decode);
+	}
+
+	/**
+	 * Creates the directories, finishes the last flushed batch of a service that
+	 * stopped, picks up the files left in the processing directory and starts
+	 * watching the pending directory
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		Files.createDirectories(pending);
+		Files.createDirectories(processing);
+		Files.createDirectories(completed);
+		recover();
+
+		// register before the first scan so no file that arrives in between is missed,
+		// files moved into the directory are reported as created
+		watchService = FileSystems.getDefault().newWatchService();
+		pending.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+
+		Stage[] stages = { write, fingerprint, spectrogram, decode };
+		for(Stage stage : stages) {
+			stage.start();
+		}
+		watcher = new Thread(this::watch, "ingest-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+		flusher = new Thread(this::refresh, "ingest-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stops claiming new files, waits for the claimed files to be ingested and
+	 * flushes the index, which completes them
+	 */
+	@Override
+	public void close() throws IOException {
+		if(watchService != null) {
+			watchService.close();
+		}
+		try {
+			if(watcher != null) {
+				watcher.join();
+			}
+
+			// every stage finishes its queue before the stage after it is stopped
+			decode.close();
+			spectrogram.close();
+			fingerprint.close();
+			write.close();
+			if(flusher != null) {
+				flusher.interrupt();
+				flusher.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		index.flush();
+	}
+
+	/**
+	 * Refreshes the index at the flush interval until the service is closed, so the
+	 * files in it are written even when too few arrive to fill a segment
+	 */
+	private void refresh() {
+		try {
+			while(true) {
+				Thread.sleep(flushIntervalMillis);
+				index.refresh();
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Reads the state file, moves the files of the last written segment that are
+	 * still in the processing directory and continues with its next track id
+	 *
+	 * @throws IOException
+	 */
+	private void recover() throws IOException {
+		reservedTrackId = nextTrackId;
+		if(!Files.exists(state)) {
+			return;
+		}
+		List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+		try {
+			nextTrackId = Math.max(nextTrackId, Integer.parseInt(lines.get(0)));
+			reservedTrackId = nextTrackId;
+			for(String line : lines.subList(1, lines.size())) {
+				String[] fields = line.split("\t", 3);
+				Path file = processing.resolve(fields[2]);
+				if(Files.exists(file)) {
+					Path done = completed.resolve(file.getFileName());
+					Files.move(file, done, StandardCopyOption.REPLACE_EXISTING);
+					listener.onCompleted(Integer.parseInt(fields[0]), fields[1], done);
+				}
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid ingestion state file: " + state, e);
+		}
+	}
+
+	/**
+	 * Replaces the state file with the reserved track ids and the files of the last
+	 * written segment, the new file is on disk before it takes the place of the old one
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void saveState() throws IOException {
+		StringBuilder builder = new StringBuilder().append(reservedTrackId).append('\n');
+		for(Job job : written) {
+			builder.append(job.trackId).append('\t').append(job.fileHash).append('\t').append(job.file.getFileName()).append('\n');
+		}
+		Path temp = Paths.get(state + ".tmp");
+		try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, state, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reserves the next block of track ids
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void reserve() throws IOException {
+		reservedTrackId = nextTrackId + RESERVED_TRACK_IDS;
+		saveState();
+	}
+
+	/**
+	 * Records the files of a written segment and moves them to the completed
+	 * directory, runs on the thread that wrote the segment
+	 *
+	 * @param jobs The files in the segment
+	 * @param failure Why the segment could not be written, null when it was written
+	 */
+	private void complete(List<Job> jobs, Throwable failure) {
+		synchronized(jobs) {
+			if(failure == null) {
+				try {
+					synchronized(this) {
+						written = new ArrayList<Job>(jobs);
+						saveState();
+					}
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			for(Job job : jobs) {
+				if(failure != null) {
+					listener.onFailed(job.file, failure instanceof Exception ? (Exception) failure : new IOException(failure));
+					continue;
+				}
+				Path done = completed.resolve(job.file.getFileName());
+				try {
+					Files.move(job.file, done, StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					listener.onFailed(job.file, e);
+					continue;
+				}
+				listener.onCompleted(job.trackId, job.fileHash, done);
+			}
+		}
+	}
+
+	/**
+	 * Claims files until the watch service is closed
+	 */
+	private void watch() {
+		try {
+			try(DirectoryStream<Path> files = Files.newDirectoryStream(processing)) {
+				for(Path file : files) {
+					decode.put(new Job(file));
+				}
+			}
+			scan();
+			while(true) {
+				WatchKey key = watchService.take();
+				for(WatchEvent<?> event : key.pollEvents()) {
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						scan();
+					} else {
+						claim(pending.resolve((Path) event.context()));
+					}
+				}
+				key.reset();
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			return;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Claims all of the files in the pending directory
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void scan() throws IOException, InterruptedException {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(pending)) {
+			for(Path file : files) {
+				claim(file);
+			}
+		}
+	}
+
+	/**
+	 * Moves a pending file into the processing directory and queues it
+	 *
+	 * @param file The pending file
+	 *
+	 * @throws InterruptedException
+	 */
+	private void claim(Path file) throws InterruptedException {
+		if(!Files.isRegularFile(file)) {
+			return;
+		}
+		Path claimed = processing.resolve(file.getFileName());
+		try {
+			Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+
+			// claimed by someone else
+			return;
+		} catch (IOException e) {
+			listener.onFailed(file, e);
+			return;
+		}
+		decode.put(new Job(claimed));
+	}
+
+	private void decode(Job job) throws Exception {
+		job.audioFile = new AudioFile(job.file.toFile(), false);
+		job.fileHash = job.audioFile.getFileHashString();
+		spectrogram.put(job);
+	}
+
+	private void spectrogram(Job job) throws Exception {
+		job.audioFile.getSpectrogram().getData();
+		fingerprint.put(job);
+	}
+
+	private void fingerprint(Job job) throws Exception {
+		job.hashes = job.audioFile.getFingerPrint().getHashes();
+
+		// drop the spectrogram before the file waits for the index
+		job.audioFile = null;
+		write.put(job);
+	}
+
+	private void write(Job job) throws Exception {
+		if(nextTrackId == reservedTrackId) {
+			reserve();
+		}
+		job.trackId = nextTrackId++;
+
+		// the file joins the files of the in memory index it is added to before it is
+		// added, as adding may write the index, and the index is held so the flusher
+		// can't swap the in memory index in between
+		synchronized(index) {
+			CompletableFuture<Void> future = index.whenWritten();
+			if(future != unwritten) {
+				List<Job> jobs = new ArrayList<Job>();
+				unwritten = future;
+				unwrittenJobs = jobs;
+				future.whenComplete((result, failure) -> complete(jobs, failure));
+			}
+			synchronized(unwrittenJobs) {
+				unwrittenJobs.add(job);
+			}
+			index.add(job.trackId, job.hashes);
+		}
+	}
+
+	/**
+	 * A file on its way through the stages, every field is set by one stage and
+	 * read by the ones after it, the queues between the stages publish the fields
+	 */
+	private static class Job {
+
+		private final Path file;
+
+		private String fileHash;
+
+		private AudioFile audioFile;
+
+		private FingerprintBlock hashes;
+
+		private int trackId;
+
+		Job(Path file) {
+			this.file = file;
+		}
+
+	}
+
+	/**
+	 * The work of a stage, which hands the job to the next stage when done
+	 */
+	private interface Step {
+
+		void run(Job job) throws Exception;
+
+	}
+
+	/**
+	 * A bounded queue of jobs and the threads that work them off
+	 */
+	private class Stage {
+
+		private final BlockingQueue<Job> queue;
+
+		private final Thread[] threads;
+
+		private final Step step;
+
+		private volatile boolean closed;
+
+		Stage(ThreadFactory factory, int threadCount, int queueCapacity, Step step) {
+			this.queue = new ArrayBlockingQueue<Job>(queueCapacity);
+			this.step = step;
+			this.threads = new Thread[threadCount];
+			for(int i = 0; i < threadCount; ++i) {
+				threads[i] = factory.newThread(this::work);
+			}
+		}
+
+		void start() {
+			for(Thread thread : threads) {
+				thread.start();
+			}
+		}
+
+		/**
+		 * Queues a job, waits while the queue is full
+		 */
+		void put(Job job) throws InterruptedException {
+			queue.put(job);
+		}
+
+		/**
+		 * Waits for the queued jobs to be done and stops the threads
+		 */
+		void close() throws InterruptedException {
+			closed = true;
+			for(Thread thread : threads) {
+				if(thread.isAlive()) {
+					thread.join();
+				}
+			}
+		}
+
+		private void work() {
+			while(true) {
+				Job job;
+				try {
+					job = queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if(job == null) {
+					if(closed) {
+						return;
+					}
+					continue;
+				}
+				try {
+					step.run(job);
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					listener.onFailed(job.file, e);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,20 @@
+package io.honerlaw.audio.fingerprint.live;
+
+import io.honerlaw.audio.fingerprint.index.Match;
+
+/**
+ * Receives the matches found in a live stream
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public interface MatchListener {
+
+	/**
+	 * Called on the stream thread when a track has enough votes in the current window
+	 *
+	 * @param match The matched track, the offset is the frame in the track at the start of the stream
+	 * @param time The frame of the stream at which the match was found
+	 */
+	void onMatch(Match match, int time);
+
+}
@@ -0,0 +1,304 @@
+package io.honerlaw.audio.fingerprint.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import io.honerlaw.audio.fingerprint.PcmSampleSource;
+import io.honerlaw.audio.fingerprint.SampleSource;
+import io.honerlaw.audio.fingerprint.hash.FingerPrint;
+import io.honerlaw.audio.fingerprint.hash.HashConsumer;
+import io.honerlaw.audio.fingerprint.hash.Spectrogram;
+import io.honerlaw.audio.fingerprint.hash.SpectrogramStream;
+import io.honerlaw.audio.fingerprint.hash.peak.PeakDetector;
+import io.honerlaw.audio.fingerprint.hash.peak.PeakHasher;
+import io.honerlaw.audio.fingerprint.index.Index;
+import io.honerlaw.audio.fingerprint.index.Match;
+import io.honerlaw.audio.fingerprint.index.PostingConsumer;
+import io.honerlaw.audio.fingerprint.index.VoteCounter;
+
+/**
+ * Recognizes tracks in a live stream of raw signed 16 bit little endian mono
+ * samples at 44.1 kHz. The samples go through the same spectrogram, peak and
+ * hash stages as a whole file, but column by column, and every hash is looked
+ * up as soon as it is produced.
+ *
+ * The votes are counted over a sliding window of the most recent frames. The
+ * window is made of buckets that each count the votes of a part of the window,
+ * when the stream moves into a new bucket the oldest bucket is dropped and the
+ * window total is counted again from the remaining buckets. A track is reported
+ * as soon as one of its alignments has enough votes in the window, and then not
+ * again until the cooldown has passed.
+ *
+ * A recognizer keeps the state of one stream and is not thread safe, every
+ * stream should have its own recognizer running on its own thread.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class StreamRecognizer implements HashConsumer {
+
+	/**
+	 * The default number of votes in the window an alignment needs to be a match
+	 */
+	public static final int MIN_VOTES = 20;
+
+	/**
+	 * The default length of the window in frames, about ten seconds
+	 */
+	public static final int WINDOW_FRAMES = 215;
+
+	/**
+	 * The length of a bucket of the window in frames, about one second
+	 */
+	public static final int BUCKET_FRAMES = 22;
+
+	/**
+	 * The index to look the hashes up in
+	 */
+	private final Index index;
+
+	/**
+	 * Receives the matches
+	 */
+	private final MatchListener listener;
+
+	/**
+	 * The number of votes in the window an alignment needs to be a match
+	 */
+	private final int minVotes;
+
+	/**
+	 * The number of frames after a match before the same track is reported again
+	 */
+	private final int cooldownFrames;
+
+	/**
+	 * Turns the samples into spectrogram columns
+	 */
+	private final SpectrogramStream stream;
+
+	/**
+	 * Finds the peaks in the spectrogram columns
+	 */
+	private final PeakDetector detector;
+
+	/**
+	 * Hashes the peaks and hands the hashes to this recognizer
+	 */
+	private final PeakHasher hasher;
+
+	/**
+	 * The votes of every bucket of the window
+	 */
+	private final VoteCounter[] buckets;
+
+	/**
+	 * The number of hashes looked up in every bucket of the window
+	 */
+	private final int[] bucketHashes;
+
+	/**
+	 * The votes of the whole window
+	 */
+	private final VoteCounter total = new VoteCounter();
+
+	/**
+	 * Counts the votes of the postings of a hash
+	 */
+	private final VoteConsumer votes = new VoteConsumer();
+
+	/**
+	 * The frame after the last match of every track, kept in a counter under the
+	 * track at offset 0 so reporting a match doesn't box, 0 when never matched
+	 */
+	private final VoteCounter lastMatches = new VoteCounter();
+
+	/**
+	 * The number of hashes looked up in the whole window
+	 */
+	private int totalHashes;
+
+	/**
+	 * The bucket the stream is currently in
+	 */
+	private int bucket;
+
+	/**
+	 * Creates a recognizer with the default window and thresholds
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param listener Receives the matches
+	 */
+	public StreamRecognizer(Index index, MatchListener listener) {
+		this(index, listener, MIN_VOTES, WINDOW_FRAMES, WINDOW_FRAMES);
+	}
+
+	/**
+	 * Creates a recognizer
+	 *
+	 * @param index The index to look the hashes up in
+	 * @param listener Receives the matches
+	 * @param minVotes The number of votes in the window an alignment needs to be a match
+	 * @param windowFrames The length of the window in frames
+	 * @param cooldownFrames The number of frames after a match before the same track is reported again
+	 */
+	public StreamRecognizer(Index index, MatchListener listener, int minVotes, int windowFrames, int cooldownFrames) {
+		this.index = index;
+		this.listener = listener;
+		this.minVotes = minVotes;
+		this.cooldownFrames = cooldownFrames;
+		this.hasher = new PeakHasher(this);
+		this.detector = new PeakDetector(Spectrogram.FREQUENCY_BINS, FingerPrint.PEAK_NEIGHBORHOOD, hasher);
+		this.stream = new SpectrogramStream(detector, true);
+
+		int count = Math.max(1, (windowFrames + BUCKET_FRAMES - 1) / BUCKET_FRAMES);
+		this.buckets = new VoteCounter[count];
+		this.bucketHashes = new int[count];
+		for(int i = 0; i < count; ++i) {
+			buckets[i] = new VoteCounter();
+		}
+	}
+
+	/**
+	 * Reads samples from the stream until it ends
+	 *
+	 * @param in The stream of raw samples
+	 *
+	 * @throws IOException
+	 */
+	public void process(InputStream in) throws IOException {
+		process(new PcmSampleSource(in));
+	}
+
+	/**
+	 * Reads samples from the channel until it ends
+	 *
+	 * @param channel The channel of raw samples
+	 *
+	 * @throws IOException
+	 */
+	public void process(ReadableByteChannel channel) throws IOException {
+		process(Channels.newInputStream(channel));
+	}
+
+	/**
+	 * Reads samples from the source until it ends, the source hands out samples as
+	 * soon as they arrive, so the stream is recognized while it is being received
+	 *
+	 * @param source The source of the samples
+	 *
+	 * @throws IOException
+	 */
+	public void process(SampleSource source) throws IOException {
+		short[] chunk = new short[Spectrogram.HOP_SIZE];
+		int read;
+		while((read = source.read(chunk, 0, chunk.length)) != -1) {
+			write(chunk, 0, read);
+		}
+		finish();
+	}
+
+	/**
+	 * Adds samples to the stream
+	 *
+	 * @param samples The sample amplitudes
+	 * @param offset The offset of the first sample
+	 * @param length The number of samples
+	 */
+	public void write(short[] samples, int offset, int length) {
+		stream.write(samples, offset, length);
+	}
+
+	/**
+	 * Recognizes the rest of the stream after the last sample
+	 */
+	public void finish() {
+		stream.finish();
+		detector.finish();
+		hasher.finish();
+	}
+
+	/**
+	 *
+	 * @return The number of frames of the stream processed so far
+	 */
+	public int getTime() {
+		return stream.getTime();
+	}
+
+	/**
+	 * Looks up a hash of the stream and counts its votes
+	 */
+	@Override
+	public void accept(int hash, int time) {
+		advance(time / BUCKET_FRAMES);
+		bucketHashes[bucket % buckets.length]++;
+		totalHashes++;
+		votes.queryTime = time;
+		index.lookup(hash, votes);
+	}
+
+	/**
+	 * Moves the window to the given bucket, dropping the buckets that fall out of it
+	 *
+	 * @param next The bucket of the current hash
+	 */
+	private void advance(int next) {
+		if(next <= bucket) {
+			return;
+		}
+		for(int b = Math.max(bucket + 1, next - buckets.length + 1); b <= next; ++b) {
+			buckets[b % buckets.length].clear();
+			bucketHashes[b % buckets.length] = 0;
+		}
+		bucket = next;
+
+		total.clear();
+		totalHashes = 0;
+		for(int i = 0; i < buckets.length; ++i) {
+			total.addAll(buckets[i]);
+			totalHashes += bucketHashes[i];
+		}
+	}
+
+	/**
+	 * Reports a match unless the track was reported within the cooldown
+	 *
+	 * @param alignment The alignment that has enough votes
+	 * @param count The votes of the alignment in the window
+	 * @param time The current frame of the stream
+	 */
+	private void report(long alignment, int count, int time) {
+		int trackId = VoteCounter.getTrackId(alignment);
+		long key = VoteCounter.pack(trackId, 0);
+		int last = lastMatches.get(key);
+		if(last != 0 && time - (last - 1) < cooldownFrames) {
+			return;
+		}
+
+		// the frames only grow, so moving the entry forward adds a positive amount
+		lastMatches.add(key, time + 1 - last);
+		listener.onMatch(new Match(trackId, VoteCounter.getOffset(alignment), count, (double) count / totalHashes), time);
+	}
+
+	/**
+	 * Counts a vote in the current bucket and the window for every posting
+	 */
+	private class VoteConsumer implements PostingConsumer {
+
+		private int queryTime;
+
+		@Override
+		public void accept(int trackId, int time) {
+			long alignment = VoteCounter.pack(trackId, time - queryTime);
+			buckets[bucket % buckets.length].increment(alignment);
+			int count = total.increment(alignment);
+			if(count >= minVotes) {
+				report(alignment, count, queryTime);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,198 @@
+package io.honerlaw.audio.fingerprint.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.index.Match;
+
+/**
+ * A client of the recognition server. Requests are sent without waiting for
+ * the answers of earlier requests, every request returns a future that is
+ * completed by the thread that reads the answers. A request the server was too
+ * busy for fails with a RejectedExecutionException, so the caller decides
+ * whether to retry. The client can be used by several threads at once.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class RecognitionClient implements Closeable {
+
+	/**
+	 * The connection to the server
+	 */
+	private final Socket socket;
+
+	/**
+	 * The requests are written to
+	 */
+	private final DataOutputStream out;
+
+	/**
+	 * The answers are read from
+	 */
+	private final DataInputStream in;
+
+	/**
+	 * The requests that have not been answered yet by their id
+	 */
+	private final Map<Integer, CompletableFuture<List<Match>>> pending = new ConcurrentHashMap<Integer, CompletableFuture<List<Match>>>();
+
+	/**
+	 * Why the connection stopped, null while answers are read
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * The id of the next request
+	 */
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	/**
+	 * Connects to a server on the loopback interface
+	 *
+	 * @param port The port of the server
+	 *
+	 * @throws IOException
+	 */
+	public RecognitionClient(int port) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		Thread thread = new Thread(this::read, "recognition-client");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Identifies precomputed query hashes
+	 *
+	 * @param query The hashes of the query
+	 *
+	 * @return The matches once the server answers
+	 */
+	public CompletableFuture<List<Match>> match(FingerprintBlock query) {
+		int id = nextId.getAndIncrement();
+		CompletableFuture<List<Match>> future = register(id);
+		if(future.isDone()) {
+			return future;
+		}
+		synchronized(out) {
+			try {
+				out.writeInt(id);
+				out.writeByte(RecognitionProtocol.HASHES);
+				query.writeTo(out);
+				out.flush();
+			} catch (IOException e) {
+				fail(id, e);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Identifies raw audio, which is fingerprinted by the server
+	 *
+	 * @param pcm Signed 16 bit little endian mono samples at 44.1 kHz
+	 *
+	 * @return The matches once the server answers
+	 */
+	public CompletableFuture<List<Match>> match(byte[] pcm) {
+		int id = nextId.getAndIncrement();
+		CompletableFuture<List<Match>> future = register(id);
+		if(future.isDone()) {
+			return future;
+		}
+		synchronized(out) {
+			try {
+				out.writeInt(id);
+				out.writeByte(RecognitionProtocol.AUDIO);
+				out.writeInt(pcm.length);
+				out.write(pcm);
+				out.flush();
+			} catch (IOException e) {
+				fail(id, e);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Closes the connection, the requests that have not been answered fail
+	 */
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Registers the future of a request, it fails right away once the connection stopped
+	 */
+	private CompletableFuture<List<Match>> register(int id) {
+		CompletableFuture<List<Match>> future = new CompletableFuture<List<Match>>();
+		if(failure != null) {
+			future.completeExceptionally(failure);
+			return future;
+		}
+		pending.put(id, future);
+
+		// the reading thread may have stopped after the check and missed the future
+		if(failure != null) {
+			fail(id, failure);
+		}
+		return future;
+	}
+
+	private void fail(int id, Throwable cause) {
+		CompletableFuture<List<Match>> future = pending.remove(id);
+		if(future != null) {
+			future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Reads the answers until the connection is closed
+	 */
+	private void read() {
+		try {
+			while(true) {
+				int id = in.readInt();
+				byte status = in.readByte();
+				CompletableFuture<List<Match>> future = pending.remove(id);
+				if(status == RecognitionProtocol.OK) {
+					List<Match> matches = RecognitionProtocol.readMatches(in);
+					if(future != null) {
+						future.complete(matches);
+					}
+				} else if(status == RecognitionProtocol.BUSY) {
+					if(future != null) {
+						future.completeExceptionally(new RejectedExecutionException("The server is busy"));
+					}
+				} else {
+					String message = in.readUTF();
+					if(future != null) {
+						future.completeExceptionally(new IOException(message));
+					}
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+			for(Integer id : pending.keySet()) {
+				fail(id, e);
+			}
+		}
+	}
+
+}
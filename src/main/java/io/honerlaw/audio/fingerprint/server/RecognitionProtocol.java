@@ -0,0 +1,85 @@
+package io.honerlaw.audio.fingerprint.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.honerlaw.audio.fingerprint.index.Match;
+
+/**
+ * The binary protocol of the recognition server. A client may send any number of
+ * requests without waiting for the answers, every answer carries the id of its
+ * request and answers are sent in the order the requests finish.
+ *
+ * Every request starts with its id (int) and its type (byte):
+ *
+ * HASHES      the hashes of the query (see FingerprintBlock.writeTo)
+ * AUDIO       byte count (int), raw signed 16 bit little endian mono samples at 44.1 kHz
+ *
+ * Every answer starts with the id of the request (int) and a status (byte):
+ *
+ * OK          match count (int), every track id, offset, votes (int, int, int) and confidence (double)
+ * BUSY        nothing, the queue of the server was full and the request was dropped
+ * ERROR       a message (UTF)
+ *
+ * All values other than the samples are written with DataOutput, so they are big endian.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public final class RecognitionProtocol {
+
+	public static final byte HASHES = 1;
+	public static final byte AUDIO = 2;
+
+	public static final byte OK = 0;
+	public static final byte BUSY = 1;
+	public static final byte ERROR = 2;
+
+	/**
+	 * The largest audio request in bytes, about three minutes
+	 */
+	public static final int MAX_AUDIO_BYTES = 16 * 1024 * 1024;
+
+	private RecognitionProtocol() {
+
+	}
+
+	/**
+	 * Writes the matches of an answer
+	 *
+	 * @param out The output to write to
+	 * @param matches The matches
+	 *
+	 * @throws IOException
+	 */
+	public static void writeMatches(DataOutput out, List<Match> matches) throws IOException {
+		out.writeInt(matches.size());
+		for(Match match : matches) {
+			out.writeInt(match.getTrackId());
+			out.writeInt(match.getOffset());
+			out.writeInt(match.getVotes());
+			out.writeDouble(match.getConfidence());
+		}
+	}
+
+	/**
+	 * Reads the matches of an answer
+	 *
+	 * @param in The input to read from
+	 *
+	 * @return The matches
+	 *
+	 * @throws IOException
+	 */
+	public static List<Match> readMatches(DataInput in) throws IOException {
+		int size = in.readInt();
+		List<Match> matches = new ArrayList<Match>(Math.max(0, Math.min(size, 64)));
+		for(int i = 0; i < size; ++i) {
+			matches.add(new Match(in.readInt(), in.readInt(), in.readInt(), in.readDouble()));
+		}
+		return matches;
+	}
+
+}
@@ -0,0 +1,459 @@
+package io.honerlaw.audio.fingerprint.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.honerlaw.audio.fingerprint.PcmSampleSource;
+import io.honerlaw.audio.fingerprint.hash.FingerPrint;
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.index.BatchMatcher;
+import io.honerlaw.audio.fingerprint.index.Index;
+import io.honerlaw.audio.fingerprint.index.Match;
+import io.honerlaw.audio.fingerprint.index.SegmentedIndex;
+
+/**
+ * A recognition endpoint on the loopback interface (see RecognitionProtocol).
+ *
+ * Every connection has a thread that reads its requests, fingerprints the audio
+ * requests and puts the queries in a bounded queue. When the queue is full the
+ * request is answered with BUSY straight away instead of waiting, so a slow index
+ * pushes back on the clients instead of piling up requests. A single batching
+ * thread takes everything that is waiting in the queue at once, up to the batch
+ * size, looks the whole batch up with a BatchMatcher and hands every answer to
+ * the writing thread of its connection. Under load the batches grow by themselves,
+ * when idle a request is looked up on its own without waiting for others.
+ *
+ * Answers wait in a bounded queue of their connection, so a client that doesn't
+ * read its answers never holds up the batching thread or the other clients. A
+ * connection whose queue is full is closed.
+ *
+ * Closing the server finishes the running batch, answers the queries still
+ * waiting in the queue with ERROR and closes every connection, so no client is
+ * left waiting for an answer.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class RecognitionServer implements Closeable {
+
+	/**
+	 * The default number of queries that can wait for a lookup
+	 */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	/**
+	 * The default largest number of queries looked up together
+	 */
+	public static final int MAX_BATCH = 64;
+
+	/**
+	 * The number of answers that can wait to be written to a connection
+	 */
+	public static final int OUTBOUND_CAPACITY = 1024;
+
+	/**
+	 * The longest time closing waits for the answers of a connection to be written
+	 */
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * Looks up the batches
+	 */
+	private final BatchMatcher matcher;
+
+	/**
+	 * The queries waiting for a lookup
+	 */
+	private final BlockingQueue<Request> queue;
+
+	/**
+	 * The largest number of queries looked up together
+	 */
+	private final int maxBatch;
+
+	/**
+	 * The open connections
+	 */
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The socket connections are accepted on
+	 */
+	private ServerSocket serverSocket;
+
+	/**
+	 * The thread that looks up the batches
+	 */
+	private Thread batchThread;
+
+	/**
+	 * Whether the server has been closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a server with the default queue capacity and batch size
+	 *
+	 * @param index The index to look the queries up in
+	 */
+	public RecognitionServer(Index index) {
+		this(index, QUEUE_CAPACITY, MAX_BATCH);
+	}
+
+	/**
+	 * Creates a server
+	 *
+	 * @param index The index to look the queries up in
+	 * @param queueCapacity The number of queries that can wait for a lookup
+	 * @param maxBatch The largest number of queries looked up together
+	 */
+	public RecognitionServer(Index index, int queueCapacity, int maxBatch) {
+		this.matcher = new BatchMatcher(index);
+		this.queue = new ArrayBlockingQueue<Request>(queueCapacity);
+		this.maxBatch = maxBatch;
+	}
+
+	/**
+	 * Starts accepting connections on the loopback interface
+	 *
+	 * @param port The port to listen on, 0 picks a free port
+	 *
+	 * @return The port listened on
+	 *
+	 * @throws IOException
+	 */
+	public int start(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		start(this::accept, "recognition-accept");
+		batchThread = start(this::batch, "recognition-batch");
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 *
+	 * @return The number of queries waiting for a lookup
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops accepting connections and looking up queries, the queued queries are
+	 * answered with an error and the connections are closed
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if(serverSocket != null) {
+			serverSocket.close();
+		}
+		if(batchThread != null) {
+			batchThread.interrupt();
+			try {
+				batchThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		List<Request> requests = new ArrayList<Request>();
+		queue.drainTo(requests);
+		for(Request request : requests) {
+			request.connection.sendError(request.id, "The server is closed");
+		}
+
+		// a query read while closing fails on the client when its connection closes
+		for(Connection connection : connections) {
+			connection.finish();
+		}
+		for(Connection connection : connections) {
+			try {
+				connection.writer.join(CLOSE_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			connection.close();
+		}
+	}
+
+	/**
+	 * Accepts connections until the server is closed
+	 */
+	private void accept() {
+		while(!closed) {
+			try {
+				Connection connection = new Connection(serverSocket.accept());
+				connections.add(connection);
+				if(closed) {
+					connection.close();
+				}
+				connection.writer.start();
+				start(connection::read, "recognition-connection");
+			} catch (IOException e) {
+				if(!closed) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks up the queued queries in batches until the server is closed
+	 */
+	private void batch() {
+		List<Request> requests = new ArrayList<Request>(maxBatch);
+		List<FingerprintBlock> queries = new ArrayList<FingerprintBlock>(maxBatch);
+		while(!closed) {
+			try {
+				requests.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(requests, maxBatch - 1);
+			for(Request request : requests) {
+				queries.add(request.query);
+			}
+			try {
+				List<List<Match>> matches = matcher.match(queries);
+				for(int i = 0; i < requests.size(); ++i) {
+					requests.get(i).connection.sendMatches(requests.get(i).id, matches.get(i));
+				}
+			} catch (RuntimeException e) {
+				for(Request request : requests) {
+					request.connection.sendError(request.id, String.valueOf(e));
+				}
+			}
+			requests.clear();
+			queries.clear();
+		}
+	}
+
+	/**
+	 * Starts a daemon thread
+	 *
+	 * @param runnable What the thread runs
+	 * @param name The name of the thread
+	 *
+	 * @return The started thread
+	 */
+	private static Thread start(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * A query waiting for a lookup
+	 */
+	private static class Request {
+
+		private final Connection connection;
+		private final int id;
+		private final FingerprintBlock query;
+
+		Request(Connection connection, int id, FingerprintBlock query) {
+			this.connection = connection;
+			this.id = id;
+			this.query = query;
+		}
+
+	}
+
+	/**
+	 * An answer waiting to be written
+	 */
+	private static class Response {
+
+		/**
+		 * Makes the writing thread close the connection once the answers before it are written
+		 */
+		private static final Response END = new Response(0, RecognitionProtocol.OK, null, null);
+
+		private final int id;
+		private final byte status;
+		private final List<Match> matches;
+		private final String message;
+
+		Response(int id, byte status, List<Match> matches, String message) {
+			this.id = id;
+			this.status = status;
+			this.matches = matches;
+			this.message = message;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(id);
+			out.writeByte(status);
+			if(status == RecognitionProtocol.OK) {
+				RecognitionProtocol.writeMatches(out, matches);
+			} else if(status == RecognitionProtocol.ERROR) {
+				out.writeUTF(message);
+			}
+		}
+
+	}
+
+	/**
+	 * A client connection with a thread that reads its requests and a thread that
+	 * writes its answers, everyone else only queues answers
+	 */
+	private class Connection {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private final BlockingQueue<Response> outbound = new ArrayBlockingQueue<Response>(OUTBOUND_CAPACITY);
+		private final Thread writer;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.writer = new Thread(this::write, "recognition-connection-writer");
+			writer.setDaemon(true);
+		}
+
+		/**
+		 * Reads requests until the connection is closed
+		 */
+		void read() {
+			try {
+				while(!closed) {
+					int id;
+					try {
+						id = in.readInt();
+					} catch (EOFException e) {
+						return;
+					}
+					byte type = in.readByte();
+					FingerprintBlock query;
+					if(type == RecognitionProtocol.HASHES) {
+						query = FingerprintBlock.readFrom(in);
+					} else if(type == RecognitionProtocol.AUDIO) {
+						int length = in.readInt();
+						if(length < 0 || length > RecognitionProtocol.MAX_AUDIO_BYTES) {
+							// the rest of the request can not be skipped safely, so give up on the connection
+							sendError(id, "Invalid audio size: " + length);
+							return;
+						}
+						byte[] pcm = new byte[length];
+						in.readFully(pcm);
+						query = FingerPrint.calculate(new PcmSampleSource(new ByteArrayInputStream(pcm)));
+					} else {
+						sendError(id, "Unknown request type: " + type);
+						return;
+					}
+					if(!queue.offer(new Request(this, id, query))) {
+						sendBusy(id);
+					}
+				}
+			} catch (IOException e) {
+				if(!closed) {
+					e.printStackTrace();
+				}
+			} finally {
+				connections.remove(this);
+				finish();
+			}
+		}
+
+		/**
+		 * Writes the queued answers until the connection is finished or closed,
+		 * flushing whenever no more answers are waiting
+		 */
+		void write() {
+			try {
+				while(true) {
+					Response response = outbound.take();
+					if(response == Response.END) {
+						break;
+					}
+					response.writeTo(out);
+					if(outbound.isEmpty()) {
+						out.flush();
+					}
+				}
+				out.flush();
+			} catch (IOException | InterruptedException e) {
+				// the client is gone or the connection was closed
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Closes the connection once the queued answers are written
+		 */
+		void finish() {
+			send(Response.END);
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// the connection is gone either way
+			}
+			if(writer != Thread.currentThread()) {
+				writer.interrupt();
+			}
+		}
+
+		void sendMatches(int id, List<Match> matches) {
+			send(new Response(id, RecognitionProtocol.OK, matches, null));
+		}
+
+		void sendBusy(int id) {
+			send(new Response(id, RecognitionProtocol.BUSY, null, null));
+		}
+
+		void sendError(int id, String message) {
+			send(new Response(id, RecognitionProtocol.ERROR, null, message));
+		}
+
+		/**
+		 * Queues an answer without waiting, a client that lets its answers pile up is disconnected
+		 */
+		private void send(Response response) {
+			if(!outbound.offer(response)) {
+				close();
+			}
+		}
+
+	}
+
+	/**
+	 * Starts a recognition server for the segments in a directory
+	 *
+	 * @param args The port and the directory of the segments
+	 *
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length != 2) {
+			System.err.println("Usage: RecognitionServer <port> <segment directory>");
+			System.exit(1);
+		}
+		SegmentedIndex index = new SegmentedIndex(Paths.get(args[1]));
+		RecognitionServer server = new RecognitionServer(index);
+		System.out.println("Recognition server listening on port " + server.start(Integer.parseInt(args[0])));
+		Thread.currentThread().join();
+	}
+
+}
@@ -7,29 +7,49 @@ import java.security.NoSuchAlgorithmException;
 
 /**
  * A utility class used to generate the SHA1 hash for a given string
+ * or stream. Every thread has a digest and a read buffer of its own,
+ * so threads hash at the same time without waiting on each other.
  * 
  * @author Derek Honerlaw <honerlawd@gmail.com>
  */
 public class Hash {
 	
 	/**
-	 * The message digest to hash the values
+	 * The size of the chunks a stream is read in
 	 */
-	public static MessageDigest SHA1;
+	public static final int CHUNK_SIZE = 64 * 1024;
 	
 	/**
-	 * Initialize the message digest
+	 * The digits of a hex string
 	 */
-	static {
+	private static final char[] HEX_CHARS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	
+	/**
+	 * The message digest of every thread
+	 */
+	private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(Hash::newDigest);
+	
+	/**
+	 * The buffer every thread reads streams into
+	 */
+	private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+	
+	/**
+	 * Creates a digest of its own, for hashing a stream in chunks while it is read
+	 * 
+	 * @return A new SHA1 message digest
+	 */
+	public static MessageDigest newDigest() {
 		try {
-			SHA1 = MessageDigest.getInstance("SHA-1");
+			return MessageDigest.getInstance("SHA-1");
 		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
+			throw new IllegalStateException(e);
 		}
 	}
 	
 	/**
-	 * Gets the hash of an input stream
+	 * Gets the hash of an input stream, the stream is read in chunks
+	 * until its end and is left open
 	 * 
 	 * @param in The input stream to hash
 	 * 
@@ -37,14 +57,17 @@ public class Hash {
 	 * 
 	 * @throws IOException
 	 */
-	public static final synchronized byte[] calculate(InputStream in) throws IOException {
-		byte[] temp = new byte[in.available()];
-		in.read(temp, 0, temp.length);
-		SHA1.reset();
-		SHA1.update(temp);
-		return SHA1.digest();
+	public static final byte[] calculate(InputStream in) throws IOException {
+		MessageDigest digest = SHA1.get();
+		byte[] chunk = CHUNK.get();
+		digest.reset();
+		int read;
+		while((read = in.read(chunk, 0, chunk.length)) != -1) {
+			digest.update(chunk, 0, read);
+		}
+		return digest.digest();
 	}
-
+	
 	/**
 	 * Calculates the hash for a given value
 	 * 
@@ -52,10 +75,11 @@ public class Hash {
 	 * 
 	 * @return The byte array containing the hashed value
 	 */
-	public static final synchronized byte[] calculate(String value) {
-		SHA1.reset();
-		SHA1.update(value.getBytes());
-		return SHA1.digest();
+	public static final byte[] calculate(String value) {
+		MessageDigest digest = SHA1.get();
+		digest.reset();
+		digest.update(value.getBytes());
+		return digest.digest();
 	}
 	
 	/**
@@ -66,18 +90,26 @@ public class Hash {
 	 * @return The string representing the byte array
 	 */
 	public static final String toHex(byte[] block) {
-		StringBuffer buf = new StringBuffer();
-		char[] hexChars = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
-		int len = block.length;
-		int high = 0;
-		int low = 0;
-		for (int i = 0; i < len; i++) {
-			high = ((block[i] & 0xf0) >> 4);
-			low = (block[i] & 0x0f);
-			buf.append(hexChars[high]);
-			buf.append(hexChars[low]);
+		char[] hex = new char[block.length * 2];
+		toHex(block, hex, 0);
+		return new String(hex);
+	}
+	
+	/**
+	 * Writes a byte array as hex digits into a buffer without allocating
+	 * 
+	 * @param block The byte array to convert
+	 * @param out The buffer to write the digits to, two for every byte
+	 * @param offset The position of the first digit in the buffer
+	 * 
+	 * @return The position after the last digit
+	 */
+	public static final int toHex(byte[] block, char[] out, int offset) {
+		for(int i = 0; i < block.length; ++i) {
+			out[offset++] = HEX_CHARS[(block[i] & 0xf0) >> 4];
+			out[offset++] = HEX_CHARS[block[i] & 0x0f];
 		}
-		return buf.toString();
+		return offset;
 	}
 	
 }
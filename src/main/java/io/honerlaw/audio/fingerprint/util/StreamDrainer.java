@@ -0,0 +1,76 @@
+package io.honerlaw.audio.fingerprint.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stream to its end on its own thread so that a process can never
+ * block on a full pipe, only the first part of the output is kept
+ * 
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class StreamDrainer extends Thread {
+	
+	/**
+	 * The maximum number of bytes of output that are kept
+	 */
+	private static final int MAX_OUTPUT = 64 * 1024;
+	
+	/**
+	 * The stream to drain
+	 */
+	private final InputStream in;
+	
+	/**
+	 * The output that has been kept
+	 */
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+	
+	/**
+	 * Creates a thread that drains the given stream once it is started
+	 * 
+	 * @param in The stream to drain
+	 */
+	public StreamDrainer(InputStream in) {
+		super("stream-drainer");
+		this.in = in;
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		byte[] buffer = new byte[4096];
+		try {
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				synchronized(output) {
+					output.write(buffer, 0, Math.max(0, Math.min(read, MAX_OUTPUT - output.size())));
+				}
+			}
+		} catch (IOException e) {
+			// the stream was closed, there is nothing left to drain
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the stream to be drained and gets the kept output
+	 * 
+	 * @return The output that was read from the stream
+	 * 
+	 * @throws InterruptedException
+	 */
+	public String getOutput() throws InterruptedException {
+		join();
+		synchronized(output) {
+			return new String(output.toByteArray());
+		}
+	}
+
+}
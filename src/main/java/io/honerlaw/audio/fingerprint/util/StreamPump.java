@@ -0,0 +1,95 @@
+package io.honerlaw.audio.fingerprint.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies a stream into another on its own thread, used to feed the standard
+ * input of a process while the calling thread reads its output or waits for it.
+ * The output is closed at the end so the process sees the end of its input, the
+ * input is left open for the caller.
+ *
+ * The copy stops early when the output is closed, which happens when the process
+ * exits without reading all of its input.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class StreamPump extends Thread {
+
+	/**
+	 * The size of the chunks that are copied
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The stream to read from
+	 */
+	private final InputStream in;
+
+	/**
+	 * The stream to write to
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Why the input could not be read, null when it was read to its end or the
+	 * output was closed first
+	 */
+	private IOException failure;
+
+	/**
+	 * Creates a thread that copies the given input into the given output once it is started
+	 *
+	 * @param in The stream to read from
+	 * @param out The stream to write to, closed when the copy ends
+	 */
+	public StreamPump(InputStream in, OutputStream out) {
+		super("stream-pump");
+		this.in = in;
+		this.out = out;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[CHUNK_SIZE];
+		try {
+			while(true) {
+				int read;
+				try {
+					read = in.read(buffer);
+				} catch (IOException e) {
+					failure = e;
+					return;
+				}
+				if(read == -1) {
+					return;
+				}
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			// the process stopped reading, the caller finds out from its exit value
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the process is already gone
+			}
+		}
+	}
+
+	/**
+	 * Waits for the copy to end
+	 *
+	 * @throws IOException If the input could not be read, the process did not get all of it
+	 * @throws InterruptedException
+	 */
+	public void await() throws IOException, InterruptedException {
+		join();
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+}
@@ -0,0 +1,465 @@
+package io.honerlaw.audio.fingerprint.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs ffmpeg conversions with a bounded number of processes at once. Jobs wait
+ * in a bounded queue for a free process, when the queue is full the caller that
+ * submits waits too, so a bulk load can never fork more processes than the host
+ * has room for no matter how many threads convert files.
+ *
+ * Every process gets an argument list instead of a command line, so paths with
+ * spaces are passed as they are, and both of its outputs are drained on their own
+ * threads. A process that runs longer than its timeout is killed. The output is
+ * written next to the final file and moved into place once ffmpeg succeeded, so a
+ * killed or failed conversion never leaves a partial file behind that looks done.
+ *
+ * A decode that streams its output to the caller (see stream) takes a process
+ * slot the same way, the slot is held until the process exits and the process is
+ * killed after the timeout as well.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class Transcoder implements Closeable {
+
+	/**
+	 * The default longest time a single conversion may take
+	 */
+	public static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * The default number of jobs that can wait for a process
+	 */
+	public static final int QUEUE_CAPACITY = 256;
+
+	/**
+	 * The transcoder shared by everything that converts files, see getDefault
+	 */
+	private static Transcoder defaultTranscoder;
+
+	/**
+	 * The path of the ffmpeg executable
+	 */
+	private final String ffmpeg;
+
+	/**
+	 * The longest time a conversion may take by default
+	 */
+	private final long timeoutMillis;
+
+	/**
+	 * Runs the conversions, one thread per process
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The statistics
+	 */
+	private final AtomicInteger running = new AtomicInteger();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder convertNanos = new LongAdder();
+
+	/**
+	 * Creates a transcoder
+	 *
+	 * @param ffmpeg The path of the ffmpeg executable
+	 * @param maxProcesses The largest number of processes that run at once
+	 * @param queueCapacity The number of jobs that can wait for a process
+	 * @param timeoutMillis The longest time a conversion may take by default
+	 */
+	public Transcoder(String ffmpeg, int maxProcesses, int queueCapacity, long timeoutMillis) {
+		this.ffmpeg = ffmpeg;
+		this.timeoutMillis = timeoutMillis;
+		this.executor = new ThreadPoolExecutor(maxProcesses, maxProcesses, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), runnable -> {
+			Thread thread = new Thread(runnable, "transcoder");
+			thread.setDaemon(true);
+			return thread;
+		}, (runnable, executor) -> {
+
+			// wait for room in the queue instead of failing the job
+			try {
+				if(executor.isShutdown()) {
+					throw new RejectedExecutionException("The transcoder is closed");
+				}
+				executor.getQueue().put(runnable);
+
+				// the transcoder may have been closed while waiting and its threads may be
+				// gone, a job that is still queued is taken back instead of never running
+				if(executor.isShutdown() && executor.getQueue().remove(runnable)) {
+					throw new RejectedExecutionException("The transcoder is closed");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Gets the transcoder shared by everything that converts files, it runs the
+	 * ffmpeg of the FFMPEG_PATH environment variable with a process per core
+	 *
+	 * @return The shared transcoder
+	 */
+	public static synchronized Transcoder getDefault() {
+		if(defaultTranscoder == null) {
+			defaultTranscoder = new Transcoder(System.getenv("FFMPEG_PATH"), Runtime.getRuntime().availableProcessors(), QUEUE_CAPACITY, TIMEOUT_MILLIS);
+		}
+		return defaultTranscoder;
+	}
+
+	/**
+	 * Replaces the shared transcoder, for example with one that runs another ffmpeg
+	 *
+	 * @param transcoder The new shared transcoder, null to go back to the one of getDefault
+	 */
+	public static synchronized void setDefault(Transcoder transcoder) {
+		defaultTranscoder = transcoder;
+	}
+
+	/**
+	 * Converts a file and waits for the conversion to finish
+	 *
+	 * @param input The file to convert
+	 * @param options The ffmpeg output options, for example the format and the sample rate
+	 * @param output The converted file
+	 *
+	 * @throws IOException If ffmpeg failed or timed out
+	 */
+	public void convert(File input, List<String> options, File output) throws IOException {
+		get(submit(input, options, output, timeoutMillis));
+	}
+
+	/**
+	 * Converts the content of a stream, which ffmpeg reads from its standard input,
+	 * and waits for the conversion to finish. Formats that need to seek in their
+	 * input, like mp4 files with the index at the end, can not be read this way
+	 *
+	 * @param input The stream to convert, it is read on its own thread and left open
+	 * @param options The ffmpeg output options, for example the format and the sample rate
+	 * @param output The converted file
+	 *
+	 * @throws IOException If ffmpeg failed, timed out or the stream could not be read
+	 */
+	public void convert(InputStream input, List<String> options, File output) throws IOException {
+		get(submit(input, options, output, timeoutMillis));
+	}
+
+	/**
+	 * Queues the conversion of a file, waits while the queue is full
+	 *
+	 * @param input The file to convert
+	 * @param options The ffmpeg output options, for example the format and the sample rate
+	 * @param output The converted file
+	 * @param timeoutMillis The longest time the conversion may take once it started
+	 *
+	 * @return The converted file once the conversion finished
+	 */
+	public CompletableFuture<File> submit(File input, List<String> options, File output, long timeoutMillis) {
+		return submit(input.getAbsolutePath(), null, options, output, timeoutMillis);
+	}
+
+	/**
+	 * Queues the conversion of the content of a stream, waits while the queue is full
+	 *
+	 * @param input The stream to convert, it is read on its own thread and left open
+	 * @param options The ffmpeg output options, for example the format and the sample rate
+	 * @param output The converted file
+	 * @param timeoutMillis The longest time the conversion may take once it started
+	 *
+	 * @return The converted file once the conversion finished
+	 */
+	public CompletableFuture<File> submit(InputStream input, List<String> options, File output, long timeoutMillis) {
+		return submit("pipe:0", input, options, output, timeoutMillis);
+	}
+
+	private CompletableFuture<File> submit(String input, InputStream stdin, List<String> options, File output, long timeoutMillis) {
+		long queued = System.nanoTime();
+		CompletableFuture<File> future = new CompletableFuture<File>();
+		executor.execute(() -> {
+			long started = System.nanoTime();
+			waitNanos.add(started - queued);
+			running.incrementAndGet();
+			try {
+				run(input, stdin, options, output, timeoutMillis);
+				completed.increment();
+				future.complete(output);
+			} catch (IOException e) {
+				failed.increment();
+				future.completeExceptionally(e);
+			} finally {
+				running.decrementAndGet();
+				convertNanos.add(System.nanoTime() - started);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Starts ffmpeg on a file with its output written to its standard output, once
+	 * a process slot is free. The slot is held until the process exits, which the
+	 * caller brings about by reading the output to its end or destroying the process
+	 *
+	 * @param input The file to convert
+	 * @param options The ffmpeg output options, for example the format and the sample rate
+	 *
+	 * @return The running process, its standard input is closed
+	 *
+	 * @throws IOException If ffmpeg could not be started
+	 */
+	public Process stream(File input, List<String> options) throws IOException {
+		return stream(input.getAbsolutePath(), false, options, timeoutMillis);
+	}
+
+	/**
+	 * Starts ffmpeg reading its standard input with its output written to its
+	 * standard output, once a process slot is free. The slot is held until the
+	 * process exits, the caller feeds its input and reads its output
+	 *
+	 * @param options The ffmpeg output options, for example the format and the sample rate
+	 *
+	 * @return The running process
+	 *
+	 * @throws IOException If ffmpeg could not be started
+	 */
+	public Process stream(List<String> options) throws IOException {
+		return stream("pipe:0", true, options, timeoutMillis);
+	}
+
+	private Process stream(String input, boolean stdin, List<String> options, long timeoutMillis) throws IOException {
+		long queued = System.nanoTime();
+		CompletableFuture<Process> future = new CompletableFuture<Process>();
+		executor.execute(() -> {
+			long started = System.nanoTime();
+			waitNanos.add(started - queued);
+			running.incrementAndGet();
+			Process process = null;
+			try {
+				process = new ProcessBuilder(getCommand(input, stdin, options, "-")).start();
+				if(!stdin) {
+					process.getOutputStream().close();
+				}
+
+				// nobody is waiting for the process any more
+				if(!future.complete(process)) {
+					process.destroyForcibly();
+				}
+				if(!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+					process.destroyForcibly().waitFor();
+					timedOut.increment();
+					failed.increment();
+				} else if(process.exitValue() == 0) {
+					completed.increment();
+				} else {
+					failed.increment();
+				}
+			} catch (IOException e) {
+				failed.increment();
+				future.completeExceptionally(e);
+			} catch (InterruptedException e) {
+				process.destroyForcibly();
+				failed.increment();
+				Thread.currentThread().interrupt();
+			} finally {
+				running.decrementAndGet();
+				convertNanos.add(System.nanoTime() - started);
+			}
+		});
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for a conversion
+	 *
+	 * @throws IOException If the conversion failed
+	 */
+	private static void get(CompletableFuture<File> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs ffmpeg on the calling thread
+	 *
+	 * @param input The ffmpeg input
+	 * @param stdin The stream fed to the standard input of ffmpeg, null when it reads a file
+	 *
+	 * @throws IOException If ffmpeg failed or timed out
+	 */
+	private void run(String input, InputStream stdin, List<String> options, File output, long timeoutMillis) throws IOException {
+		File partial = new File(output.getPath() + ".tmp");
+		Process process = new ProcessBuilder(getCommand(input, stdin != null, options, partial.getAbsolutePath())).start();
+		StreamPump pump = null;
+		if(stdin == null) {
+			process.getOutputStream().close();
+		} else {
+			pump = new StreamPump(stdin, process.getOutputStream());
+			pump.start();
+		}
+		StreamDrainer out = new StreamDrainer(process.getInputStream());
+		StreamDrainer errors = new StreamDrainer(process.getErrorStream());
+		out.start();
+		errors.start();
+		try {
+			if(!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				process.destroyForcibly().waitFor();
+				timedOut.increment();
+				throw new IOException("Timed out converting audio file after " + timeoutMillis + " ms: " + input);
+			}
+			if(pump != null) {
+				pump.await();
+			}
+			if(process.exitValue() != 0) {
+				throw new IOException("Failed to convert audio file: " + errors.getOutput());
+			}
+			out.getOutput();
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (IOException e) {
+			Files.deleteIfExists(partial.toPath());
+			throw e;
+		} finally {
+			if(process.isAlive()) {
+				Files.deleteIfExists(partial.toPath());
+			}
+		}
+		Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Builds the argument list of ffmpeg
+	 *
+	 * @param input The ffmpeg input
+	 * @param stdin Whether ffmpeg reads its standard input
+	 * @param options The ffmpeg output options
+	 * @param output The ffmpeg output
+	 *
+	 * @return The arguments
+	 *
+	 * @throws IOException If the path of ffmpeg is not set
+	 */
+	private List<String> getCommand(String input, boolean stdin, List<String> options, String output) throws IOException {
+		if(ffmpeg == null) {
+			throw new IOException("The path of the ffmpeg executable is not set");
+		}
+		List<String> command = new ArrayList<String>();
+		command.add(ffmpeg);
+		if(!stdin) {
+			command.add("-nostdin");
+		}
+		command.addAll(Arrays.asList("-v", "error", "-y", "-i", input));
+		command.addAll(options);
+		command.add(output);
+		return command;
+	}
+
+	/**
+	 *
+	 * @return The number of jobs waiting for a process
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 *
+	 * @return The number of processes running
+	 */
+	public int getRunning() {
+		return running.get();
+	}
+
+	/**
+	 *
+	 * @return The number of conversions that succeeded
+	 */
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	/**
+	 *
+	 * @return The number of conversions that failed, including the ones that timed out
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	/**
+	 *
+	 * @return The number of conversions that were killed after their timeout
+	 */
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+
+	/**
+	 *
+	 * @return The average time in milliseconds a job waited for a process
+	 */
+	public double getAverageWaitMillis() {
+		long jobs = completed.sum() + failed.sum();
+		return jobs == 0 ? 0 : waitNanos.sum() / 1e6 / jobs;
+	}
+
+	/**
+	 *
+	 * @return The average time in milliseconds a conversion took once its process started
+	 */
+	public double getAverageLatencyMillis() {
+		long jobs = completed.sum() + failed.sum();
+		return jobs == 0 ? 0 : convertNanos.sum() / 1e6 / jobs;
+	}
+
+	/**
+	 * Stops taking jobs, the queued jobs are still converted
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,105 @@
+package io.honerlaw.audio.fingerprint.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads for work that mostly waits on the disk or on another
+ * process, when the running JDK has them (21 and newer). A virtual thread that
+ * blocks gives its carrier back, so thousands of them can wait at once without
+ * tuning the number of threads. On older JDKs daemon platform threads are
+ * created instead, so the same code runs everywhere.
+ *
+ * The API is looked up with reflection so the sources still build for Java 8.
+ * CPU heavy work should stay on a fixed number of platform threads, one per
+ * core, since more threads than cores only adds switching.
+ *
+ * @author Derek Honerlaw <honerlawd@gmail.com>
+ */
+public class VirtualThreads {
+
+	/**
+	 * Thread.ofVirtual, null when the JDK has no virtual threads
+	 */
+	private static final Method OF_VIRTUAL = getMethod(Thread.class, "ofVirtual");
+
+	/**
+	 * Thread.Builder.name(String, long) and Thread.Builder.factory, looked up on the
+	 * public interface since the builders themselves are not accessible
+	 */
+	private static final Method NAME = getMethod(getClass("java.lang.Thread$Builder"), "name", String.class, long.class);
+	private static final Method FACTORY = getMethod(getClass("java.lang.Thread$Builder"), "factory");
+
+	/**
+	 *
+	 * @return Whether the running JDK has virtual threads
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+	}
+
+	/**
+	 * Creates a factory of virtual threads, or of daemon platform threads when the
+	 * JDK has no virtual threads
+	 *
+	 * @param name The prefix of the names of the threads, followed by a counter
+	 *
+	 * @return The thread factory
+	 */
+	public static ThreadFactory newFactory(String name) {
+		if(isAvailable()) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		return newPlatformFactory(name);
+	}
+
+	/**
+	 * Creates a factory of daemon platform threads
+	 *
+	 * @param name The prefix of the names of the threads, followed by a counter
+	 *
+	 * @return The thread factory
+	 */
+	public static ThreadFactory newPlatformFactory(String name) {
+		int[] count = new int[1];
+		return runnable -> {
+			Thread thread;
+			synchronized(count) {
+				thread = new Thread(runnable, name + "-" + count[0]++);
+			}
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * @return The class, null when it doesn't exist
+	 */
+	private static Class<?> getClass(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The public method, null when it or its class doesn't exist
+	 */
+	private static Method getMethod(Class<?> type, String name, Class<?>... parameters) {
+		if(type == null) {
+			return null;
+		}
+		try {
+			return type.getMethod(name, parameters);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package io.honerlaw.audio.fingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import io.honerlaw.audio.fingerprint.util.Transcoder;
+import junit.framework.TestCase;
+
+public class AudioFileTest extends TestCase {
+	
+	/**
+	 * Stands in for ffmpeg, counts its runs and copies a silent wav file
+	 */
+	private static final String SCRIPT = String.join("\n",
+		"#!/bin/sh",
+		"for arg; do",
+		"  if [ \"$previous\" = \"-i\" ]; then input=$arg; fi",
+		"  previous=$arg",
+		"done",
+		"if [ \"$input\" = \"pipe:0\" ]; then cat > /dev/null; fi",
+		"echo run >> \"$(dirname \"$0\")/runs\"",
+		"cp \"$(dirname \"$0\")/silence.wav\" \"$previous\"",
+		"");
+	
+	private Path directory;
+	
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("audiofile");
+		Path script = directory.resolve("ffmpeg");
+		Files.write(script, SCRIPT.getBytes());
+		script.toFile().setExecutable(true);
+		Transcoder.setDefault(new Transcoder(script.toString(), 1, 4, 10000));
+		AudioFile.setWAVDirectory(directory.resolve("wavs"));
+		
+		ByteBuffer wav = ByteBuffer.allocate(44 + 4410 * 2).order(ByteOrder.LITTLE_ENDIAN);
+		wav.put("RIFF".getBytes()).putInt(36 + 4410 * 2).put("WAVE".getBytes());
+		wav.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1);
+		wav.putInt(44100).putInt(44100 * 2).putShort((short) 2).putShort((short) 16);
+		wav.put("data".getBytes()).putInt(4410 * 2);
+		Files.write(directory.resolve("silence.wav"), wav.array());
+	}
+	
+	@Override
+	protected void tearDown() throws IOException {
+		Transcoder.getDefault().close();
+		Transcoder.setDefault(null);
+		AudioFile.setWAVDirectory(null);
+		try(Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+	
+	public void testCachedConversion() throws Exception {
+		File song = directory.resolve("song.mp3").toFile();
+		Files.write(song.toPath(), "song".getBytes());
+		String hash = AudioFile.getFileHashString(song);
+		AudioFile first = new AudioFile(song);
+		assertEquals(hash, first.getFileHashString());
+		assertEquals(directory.resolve("wavs").resolve(hash + ".wav").toString(), first.getWAVFilePath());
+		assertEquals(1, getRuns());
+		
+		// the file is known by its path, size and modification time, ffmpeg doesn't run again
+		AudioFile second = new AudioFile(song);
+		assertEquals(hash, second.getFileHashString());
+		assertEquals(first.getWAVFilePath(), second.getWAVFilePath());
+		assertEquals(1, getRuns());
+		
+		// a changed file is hashed and converted again
+		Files.write(song.toPath(), "other song".getBytes());
+		song.setLastModified(song.lastModified() + 2000);
+		AudioFile changed = new AudioFile(song);
+		assertEquals(AudioFile.getFileHashString(song), changed.getFileHashString());
+		assertEquals(2, getRuns());
+	}
+	
+	private int getRuns() throws IOException {
+		return Files.readAllLines(directory.resolve("runs")).size();
+	}
+
+}
@@ -0,0 +1,32 @@
+package io.honerlaw.audio.fingerprint;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+public class PcmSampleSourceTest extends TestCase {
+	
+	public void testRead() throws Exception {
+		byte[] pcm = { 1, 0, (byte) 0xff, (byte) 0xff, 0, 1 };
+		PcmSampleSource source = new PcmSampleSource(new ByteArrayInputStream(pcm));
+		short[] samples = new short[3];
+		assertEquals(3, source.read(samples, 0, 3));
+		assertEquals(1, samples[0]);
+		assertEquals(-1, samples[1]);
+		assertEquals(256, samples[2]);
+		assertEquals(-1, source.read(samples, 0, 3));
+	}
+	
+	public void testReadNothing() throws Exception {
+		
+		// an odd number of bytes leaves a byte pending
+		byte[] pcm = { 1, 0, 2 };
+		PcmSampleSource source = new PcmSampleSource(new ByteArrayInputStream(pcm));
+		short[] samples = new short[2];
+		assertEquals(0, source.read(samples, 0, 0));
+		assertEquals(1, source.read(samples, 0, 1));
+		assertEquals(0, source.read(samples, 0, 0));
+		assertEquals(1, samples[0]);
+	}
+
+}
@@ -0,0 +1,103 @@
+package io.honerlaw.audio.fingerprint.cluster;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.index.Match;
+import junit.framework.TestCase;
+
+public class CoordinatorTest extends TestCase {
+	
+	private static final int PARTITIONS = 3;
+	
+	private final List<PartitionServer> servers = new ArrayList<PartitionServer>();
+	
+	private final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+	
+	@Override
+	protected void setUp() throws Exception {
+		for(int partition = 0; partition < PARTITIONS; ++partition) {
+			PartitionServer server = new PartitionServer(partition, PARTITIONS);
+			addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.start(0)));
+			servers.add(server);
+		}
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		for(PartitionServer server : servers) {
+			server.close();
+		}
+	}
+	
+	public void testMatch() throws Exception {
+		assertMatch(addresses);
+	}
+	
+	public void testForkedPartitions() throws Exception {
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		List<Process> processes = new ArrayList<Process>();
+		List<InetSocketAddress> forked = new ArrayList<InetSocketAddress>();
+		try {
+			for(int partition = 0; partition < PARTITIONS; ++partition) {
+				Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), PartitionServer.class.getName(),
+						"0", String.valueOf(partition), String.valueOf(PARTITIONS)).redirectError(Redirect.INHERIT).start();
+				processes.add(process);
+				
+				// the server prints its port once it listens
+				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				String line = reader.readLine();
+				assertNotNull(line);
+				int port = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+				forked.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			}
+			assertMatch(forked);
+		} finally {
+			for(Process process : processes) {
+				process.destroyForcibly().waitFor();
+			}
+		}
+	}
+	
+	private void assertMatch(List<InetSocketAddress> addresses) throws Exception {
+		Random random = new Random(7);
+		FingerprintBlock[] tracks = new FingerprintBlock[20];
+		try(Coordinator coordinator = new Coordinator(addresses)) {
+			for(int trackId = 0; trackId < tracks.length; ++trackId) {
+				tracks[trackId] = new FingerprintBlock();
+				for(int time = 0; time < 1000; ++time) {
+					tracks[trackId].accept(random.nextInt(1 << 20), time);
+				}
+				coordinator.add(trackId, tracks[trackId]);
+			}
+			
+			FingerprintBlock query = new FingerprintBlock();
+			for(int i = 200; i < 400; ++i) {
+				query.accept(tracks[11].getHash(i), tracks[11].getTime(i) - 200);
+			}
+			List<Match> matches = coordinator.match(query);
+			assertEquals(11, matches.get(0).getTrackId());
+			assertEquals(200, matches.get(0).getOffset());
+			assertEquals(200, matches.get(0).getVotes());
+		}
+	}
+	
+	public void testPartition() {
+		int[] counts = new int[PARTITIONS];
+		for(int hash = 0; hash < 30000; ++hash) {
+			counts[Protocol.getPartition(hash, PARTITIONS)]++;
+		}
+		for(int count : counts) {
+			assertTrue(count > 9000);
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package io.honerlaw.audio.fingerprint.hash;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FFTTest extends TestCase {
+	
+	public void testGetInstance() {
+		assertSame(FFT.getInstance(1024, -1), FFT.getInstance(1024, -1));
+		assertNotSame(FFT.getInstance(1024, -1), FFT.getInstance(1024, 1));
+		assertNotSame(FFT.getInstance(1024, -1), FFT.getInstance(2048, -1));
+	}
+	
+	public void testRealMagnitudes() {
+		Random random = new Random(42);
+		for(int size = 4; size <= 4096; size <<= 2) {
+			double[] samples = new double[size];
+			for(int i = 0; i < size; ++i) {
+				samples[i] = random.nextGaussian() * 1000;
+			}
+			double[] expected = getMagnitudes(samples);
+			double[] mag = new double[size / 2 + 1];
+			FFT.getInstance(size / 2, -1).realMagnitudes(samples.clone(), mag);
+			for(int k = 0; k < mag.length; ++k) {
+				assertEquals(expected[k], mag[k], expected[k] * 1e-9 + 1e-6);
+			}
+		}
+	}
+	
+	private double[] getMagnitudes(double[] samples) {
+		int size = samples.length;
+		double[] mag = new double[size / 2 + 1];
+		for(int k = 0; k < mag.length; ++k) {
+			double real = 0;
+			double imaginary = 0;
+			for(int n = 0; n < size; ++n) {
+				double angle = 2 * Math.PI * k * n / size;
+				real += samples[n] * Math.cos(angle);
+				imaginary -= samples[n] * Math.sin(angle);
+			}
+			mag[k] = Math.sqrt(real * real + imaginary * imaginary);
+		}
+		return mag;
+	}
+
+}
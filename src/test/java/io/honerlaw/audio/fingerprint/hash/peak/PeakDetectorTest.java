@@ -0,0 +1,88 @@
+package io.honerlaw.audio.fingerprint.hash.peak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PeakDetectorTest extends TestCase {
+
+	private static final int[] FRAMES = { 1, 2, 3, 7, 41, 130 };
+
+	private static final int[] BINS = { 1, 2, 5, 64, 97 };
+
+	private static final int[] NEIGHBORHOODS = { 0, 1, 2, 5, 20 };
+
+	public void testRandomSpectrograms() {
+		Random random = new Random(7);
+		for(int frames : FRAMES) {
+			for(int bins : BINS) {
+				for(int neighborhood : NEIGHBORHOODS) {
+					double[][] spectrogram = new double[frames][bins];
+					for(int i = 0; i < frames; ++i) {
+						for(int j = 0; j < bins; ++j) {
+							spectrogram[i][j] = random.nextDouble();
+						}
+					}
+					assertEquivalent(spectrogram, neighborhood);
+				}
+			}
+		}
+	}
+
+	public void testSpectrogramsWithTies() {
+		Random random = new Random(11);
+		for(int frames : FRAMES) {
+			for(int bins : BINS) {
+				for(int neighborhood : NEIGHBORHOODS) {
+					double[][] spectrogram = new double[frames][bins];
+					for(int i = 0; i < frames; ++i) {
+						for(int j = 0; j < bins; ++j) {
+							spectrogram[i][j] = random.nextInt(3);
+						}
+					}
+					assertEquivalent(spectrogram, neighborhood);
+				}
+			}
+		}
+	}
+
+	public void testSilence() {
+		assertEquivalent(new double[50][40], 20);
+	}
+
+	private void assertEquivalent(double[][] spectrogram, int neighborhood) {
+		List<Long> expected = new ArrayList<Long>();
+		for(int i = 0; i < spectrogram.length; ++i) {
+			for(int j = 0; j < spectrogram[0].length; ++j) {
+				if(isPeakAt(i, j, spectrogram, neighborhood)) {
+					expected.add(((long) i << 32) | j);
+				}
+			}
+		}
+		List<Long> actual = new ArrayList<Long>();
+		PeakDetector.detect(spectrogram, neighborhood, (time, freq) -> actual.add(((long) time << 32) | freq));
+		assertEquals(spectrogram.length + "x" + spectrogram[0].length + " n=" + neighborhood, expected, actual);
+	}
+
+	/**
+	 * The brute force search the detector replaced
+	 */
+	private boolean isPeakAt(int x, int y, double[][] spectrogram, int neighborhood) {
+		double amplitude = spectrogram[x][y];
+		int minX = x - neighborhood < 0 ? 0 : x - neighborhood;
+		int maxX = x + neighborhood >= spectrogram.length ? spectrogram.length - 1 : x + neighborhood;
+		int minY = y - neighborhood < 0 ? 0 : y - neighborhood;
+		int maxY = y + neighborhood >= spectrogram[0].length ? spectrogram[0].length - 1 : y + neighborhood;
+		for(int k = minX; k < maxX; ++k) {
+			for(int l = minY; l < maxY; ++l) {
+				if(spectrogram[k][l] > amplitude) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+}
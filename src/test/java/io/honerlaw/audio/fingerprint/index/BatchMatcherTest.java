@@ -0,0 +1,82 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import junit.framework.TestCase;
+
+public class BatchMatcherTest extends TestCase {
+	
+	public void testSameAsSingleQueries() {
+		Random random = new Random(8);
+		FingerprintBlock[] tracks = new FingerprintBlock[30];
+		int[] trackIds = new int[tracks.length];
+		InvertedIndex index = new InvertedIndex();
+		ShardedIndex sharded = new ShardedIndex(1);
+		for(int trackId = 0; trackId < tracks.length; ++trackId) {
+			trackIds[trackId] = trackId;
+			tracks[trackId] = new FingerprintBlock();
+			for(int time = 0; time < 1000; ++time) {
+				for(int i = 0; i < 2; ++i) {
+					tracks[trackId].accept(random.nextInt(1 << 14), time);
+				}
+			}
+			index.add(trackId, tracks[trackId]);
+			sharded.add(trackId, tracks[trackId]);
+		}
+		
+		// overlapping clips so the queries share hashes
+		List<FingerprintBlock> batch = new ArrayList<FingerprintBlock>();
+		for(int q = 0; q < 50; ++q) {
+			FingerprintBlock track = tracks[q % tracks.length];
+			int start = random.nextInt(800);
+			FingerprintBlock query = new FingerprintBlock();
+			for(int i = 0; i < track.size(); ++i) {
+				if(track.getTime(i) >= start && track.getTime(i) < start + 150) {
+					query.accept(track.getHash(i), track.getTime(i) - start);
+				}
+			}
+			batch.add(query);
+		}
+		
+		List<List<Match>> results = new BatchMatcher(index).match(batch);
+		assertEquals(batch.size(), results.size());
+		ForkJoinPool pool = new ForkJoinPool(1);
+		ShardedMatcher single = new ShardedMatcher(sharded, pool);
+		for(int q = 0; q < batch.size(); ++q) {
+			List<Match> expected = single.match(batch.get(q));
+			List<Match> actual = results.get(q);
+			assertEquals(q % tracks.length, actual.get(0).getTrackId());
+			assertEquals(expected.size(), actual.size());
+			for(int i = 0; i < expected.size(); ++i) {
+				assertEquals(expected.get(i).getVotes(), actual.get(i).getVotes());
+			}
+		}
+		pool.shutdown();
+	}
+	
+	public void testConfidenceWithoutStoppedHashes() {
+		FingerprintBlock track = new FingerprintBlock();
+		int[] stopped = new int[30];
+		for(int i = 0; i < 100; ++i) {
+			track.accept(i * 7919, i);
+			if(i < stopped.length) {
+				stopped[i] = i * 7919;
+			}
+		}
+		InvertedIndex index = new InvertedIndex();
+		index.add(3, track);
+		
+		// the stopped hashes can not vote, so every hash that could vote did
+		List<FingerprintBlock> batch = new ArrayList<FingerprintBlock>();
+		batch.add(track);
+		List<Match> matches = new BatchMatcher(index, Matcher.MIN_VOTES, new StopList(stopped)).match(batch).get(0);
+		assertEquals(3, matches.get(0).getTrackId());
+		assertEquals(70, matches.get(0).getVotes());
+		assertEquals(1.0, matches.get(0).getConfidence(), 1e-9);
+	}
+
+}
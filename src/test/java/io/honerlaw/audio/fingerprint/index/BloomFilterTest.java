@@ -0,0 +1,93 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import junit.framework.TestCase;
+
+public class BloomFilterTest extends TestCase {
+	
+	public void testFalsePositiveRate() {
+		Random random = new Random(13);
+		BloomFilter filter = new BloomFilter(100000);
+		int[] added = new int[100000];
+		for(int i = 0; i < added.length; ++i) {
+			added[i] = random.nextInt() | 1;
+			filter.add(added[i]);
+		}
+		for(int hash : added) {
+			assertTrue(filter.mightContain(hash));
+		}
+		int passed = 0;
+		for(int i = 0; i < 100000; ++i) {
+			if(filter.mightContain(random.nextInt() & ~1)) {
+				passed++;
+			}
+		}
+		assertTrue(passed < 2000);
+	}
+	
+	public void testRejectWithoutLookups() throws Exception {
+		Path directory = Files.createTempDirectory("bloom");
+		try {
+			Random random = new Random(14);
+			InvertedIndex index = new InvertedIndex();
+			FingerprintBlock track = new FingerprintBlock();
+			for(int trackId = 0; trackId < 20; ++trackId) {
+				track = new FingerprintBlock();
+				for(int time = 0; time < 1000; ++time) {
+					track.accept(random.nextInt(1 << 20), time);
+				}
+				index.add(trackId, track);
+			}
+			Segment segment = SegmentWriter.write(index, directory.resolve("bloom.seg"));
+			for(int i = 0; i < track.size(); ++i) {
+				assertTrue(segment.mightContain(track.getHash(i)));
+			}
+			
+			int[] lookups = new int[1];
+			Index counting = new Index() {
+				
+				@Override
+				public int lookup(int hash, PostingConsumer consumer) {
+					lookups[0]++;
+					return segment.lookup(hash, consumer);
+				}
+				
+				@Override
+				public int count(int hash) {
+					return segment.count(hash);
+				}
+				
+				@Override
+				public boolean mightContain(int hash) {
+					return segment.mightContain(hash);
+				}
+				
+			};
+			
+			// hashes outside of the indexed range
+			FingerprintBlock unknown = new FingerprintBlock();
+			for(int i = 0; i < 300; ++i) {
+				unknown.accept(random.nextInt(1 << 20) | 1 << 24, i);
+			}
+			assertTrue(new Matcher(counting).match(unknown).isEmpty());
+			assertTrue(lookups[0] < Matcher.MIN_VOTES);
+			
+			FingerprintBlock known = new FingerprintBlock();
+			for(int i = 500; i < 600; ++i) {
+				known.accept(track.getHash(i), i - 500);
+			}
+			assertEquals(19, new Matcher(counting).match(known).get(0).getTrackId());
+		} finally {
+			for(File file : directory.toFile().listFiles()) {
+				file.delete();
+			}
+			Files.delete(directory);
+		}
+	}
+
+}
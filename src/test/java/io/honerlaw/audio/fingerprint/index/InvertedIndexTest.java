@@ -0,0 +1,53 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import junit.framework.TestCase;
+
+public class InvertedIndexTest extends TestCase {
+	
+	public void testLookup() {
+		InvertedIndex index = new InvertedIndex();
+		index.add(0, 1, 10);
+		index.add(0, 2, 20);
+		index.add(-5, 1, 30);
+		assertEquals(2, index.size());
+		assertEquals(3, index.getPostingCount());
+		assertEquals(2, index.count(0));
+		assertEquals(0, index.count(7));
+		
+		List<Long> postings = new ArrayList<Long>();
+		assertEquals(2, index.lookup(0, (trackId, time) -> postings.add(Posting.pack(trackId, time))));
+		assertEquals(Posting.pack(1, 10), (long) postings.get(0));
+		assertEquals(Posting.pack(2, 20), (long) postings.get(1));
+		assertEquals(0, index.lookup(7, (trackId, time) -> fail()));
+	}
+	
+	public void testAddBlocks() {
+		Random random = new Random(3);
+		InvertedIndex index = new InvertedIndex(4);
+		Map<Integer, List<Long>> expected = new HashMap<Integer, List<Long>>();
+		for(int trackId = 0; trackId < 20; ++trackId) {
+			FingerprintBlock block = new FingerprintBlock(16);
+			for(int i = 0; i < 5000; ++i) {
+				int hash = random.nextInt(20000) - 10000;
+				block.accept(hash, i);
+				expected.computeIfAbsent(hash, key -> new ArrayList<Long>()).add(Posting.pack(trackId, i));
+			}
+			index.add(trackId, block);
+		}
+		assertEquals(expected.size(), index.size());
+		assertEquals(100000, index.getPostingCount());
+		for(Map.Entry<Integer, List<Long>> entry : expected.entrySet()) {
+			List<Long> postings = new ArrayList<Long>();
+			index.lookup(entry.getKey(), (trackId, time) -> postings.add(Posting.pack(trackId, time)));
+			assertEquals(entry.getValue(), postings);
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.List;
+import java.util.Random;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import junit.framework.TestCase;
+
+public class MatcherTest extends TestCase {
+	
+	private static final int TRACKS = 50;
+	
+	private final FingerprintBlock[] tracks = new FingerprintBlock[TRACKS];
+	
+	private final InvertedIndex index = new InvertedIndex();
+	
+	@Override
+	protected void setUp() {
+		Random random = new Random(5);
+		for(int trackId = 0; trackId < TRACKS; ++trackId) {
+			tracks[trackId] = new FingerprintBlock();
+			for(int time = 0; time < 2000; ++time) {
+				for(int i = 0; i < 3; ++i) {
+					tracks[trackId].accept(random.nextInt(1 << 20), time);
+				}
+			}
+			index.add(trackId, tracks[trackId]);
+		}
+	}
+	
+	public void testMatch() {
+		List<Match> matches = new Matcher(index).match(getQuery(17, 500, 400, 0));
+		assertFalse(matches.isEmpty());
+		assertEquals(17, matches.get(0).getTrackId());
+		assertEquals(500, matches.get(0).getOffset());
+	}
+	
+	public void testMatchWithNoise() {
+		Matcher matcher = new Matcher(index, Matcher.MIN_VOTES, Integer.MAX_VALUE, Matcher.LEAD_FACTOR);
+		List<Match> matches = matcher.match(getQuery(3, 1200, 300, 10));
+		assertEquals(3, matches.get(0).getTrackId());
+		assertEquals(1200, matches.get(0).getOffset());
+		assertEquals(1.0 / 11, matches.get(0).getConfidence(), 0.01);
+	}
+	
+	public void testNoMatch() {
+		Random random = new Random(9);
+		FingerprintBlock query = new FingerprintBlock();
+		for(int i = 0; i < 500; ++i) {
+			query.accept(random.nextInt(1 << 20) | 1 << 21, i / 3);
+		}
+		assertTrue(new Matcher(index).match(query).isEmpty());
+	}
+	
+	/**
+	 * Cuts a clip out of a track and adds random hashes between its hashes
+	 */
+	private FingerprintBlock getQuery(int trackId, int start, int length, int noise) {
+		Random random = new Random(trackId);
+		FingerprintBlock query = new FingerprintBlock();
+		for(int i = 0; i < tracks[trackId].size(); ++i) {
+			int time = tracks[trackId].getTime(i);
+			if(time >= start && time < start + length) {
+				query.accept(tracks[trackId].getHash(i), time - start);
+				for(int n = 0; n < noise; ++n) {
+					query.accept(random.nextInt(1 << 20) | 1 << 21, time - start);
+				}
+			}
+		}
+		return query;
+	}
+
+}
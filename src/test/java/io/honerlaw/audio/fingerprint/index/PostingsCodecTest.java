@@ -0,0 +1,42 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PostingsCodecTest extends TestCase {
+	
+	public void testRoundTrip() {
+		Random random = new Random(3);
+		long[] postings = new long[5000];
+		for(int i = 0; i < postings.length; ++i) {
+			postings[i] = Posting.pack(random.nextInt(1000), random.nextInt(20000));
+		}
+		postings[0] = Posting.pack(Integer.MIN_VALUE, -1);
+		postings[1] = Posting.pack(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		postings[2] = Posting.pack(-5, 0);
+		PostingsCodec.sort(postings, postings.length);
+		
+		byte[] encoded = new byte[PostingsCodec.getMaxSize(postings.length)];
+		int length = PostingsCodec.encode(postings, postings.length, encoded);
+		assertTrue(length * 2 < postings.length * 8);
+		
+		List<Long> decoded = new ArrayList<Long>();
+		ByteBuffer data = ByteBuffer.wrap(encoded, 0, length);
+		assertEquals(postings.length, PostingsCodec.getCount(data, 0));
+		assertEquals(postings.length, PostingsCodec.decode(data, 0, (trackId, time) -> decoded.add(Posting.pack(trackId, time))));
+		for(int i = 0; i < postings.length; ++i) {
+			assertEquals(postings[i], (long) decoded.get(i));
+		}
+	}
+	
+	public void testEmpty() {
+		byte[] encoded = new byte[PostingsCodec.getMaxSize(0)];
+		assertEquals(1, PostingsCodec.encode(new long[0], 0, encoded));
+		assertEquals(0, PostingsCodec.decode(ByteBuffer.wrap(encoded), 0, (trackId, time) -> fail()));
+	}
+
+}
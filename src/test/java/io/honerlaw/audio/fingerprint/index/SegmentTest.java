@@ -0,0 +1,61 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SegmentTest extends TestCase {
+	
+	private Path directory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("segments");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		for(File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		Files.delete(directory);
+	}
+	
+	public void testWriteAndRead() throws Exception {
+		Random random = new Random(1);
+		InvertedIndex index = new InvertedIndex();
+		for(int i = 0; i < 50000; ++i) {
+			index.add(random.nextInt(5000) - 2500, random.nextInt(100), random.nextInt(10000));
+		}
+		Segment segment = SegmentWriter.write(index, directory.resolve("test.seg"));
+		assertEquals(index.size(), segment.getHashCount());
+		assertEquals(index.getPostingCount(), segment.getPostingCount());
+		for(int hash = -3000; hash < 3000; ++hash) {
+			assertEquals(index.count(hash), segment.count(hash));
+			assertEquals(getPostings(index, hash), getPostings(segment, hash));
+		}
+		assertFalse(Files.exists(directory.resolve("test.seg.tmp")));
+	}
+	
+	public void testEmpty() throws Exception {
+		Segment segment = SegmentWriter.write(new InvertedIndex(), directory.resolve("empty.seg"));
+		assertEquals(0, segment.getHashCount());
+		assertEquals(0, segment.lookup(1, (trackId, time) -> fail()));
+	}
+	
+	private List<Long> getPostings(Index index, int hash) {
+		List<Long> postings = new ArrayList<Long>();
+		index.lookup(hash, (trackId, time) -> postings.add(Posting.pack(trackId, time)));
+		
+		// segments keep the postings of a hash sorted
+		Collections.sort(postings);
+		return postings;
+	}
+
+}
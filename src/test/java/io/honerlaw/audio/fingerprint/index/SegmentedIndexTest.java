@@ -0,0 +1,125 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import junit.framework.TestCase;
+
+public class SegmentedIndexTest extends TestCase {
+	
+	private Path directory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("segmented");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		for(File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		Files.delete(directory);
+	}
+	
+	public void testFlushAndMerge() throws Exception {
+		Random random = new Random(2);
+		InvertedIndex expected = new InvertedIndex();
+		try(SegmentedIndex index = new SegmentedIndex(directory, 1000)) {
+			for(int trackId = 0; trackId < 100; ++trackId) {
+				FingerprintBlock block = new FingerprintBlock();
+				for(int i = 0; i < 300; ++i) {
+					block.accept(random.nextInt(2000), random.nextInt(5000));
+				}
+				expected.add(trackId, block);
+				index.add(trackId, block);
+			}
+			index.flush();
+			assertTrue(index.getSegments().size() < SegmentedIndex.MERGE_FACTOR * 3);
+			assertPostings(expected, index);
+		}
+
+		// everything is on disk after closing
+		try(SegmentedIndex index = new SegmentedIndex(directory, 1000)) {
+			assertPostings(expected, index);
+		}
+		for(File file : directory.toFile().listFiles()) {
+			assertTrue(file.getName().endsWith(".seg"));
+		}
+	}
+	
+	public void testCrashedMerge() throws Exception {
+		Random random = new Random(3);
+		InvertedIndex expected = new InvertedIndex();
+		List<Segment> segments = new ArrayList<Segment>();
+		for(int generation = 0; generation < SegmentedIndex.MERGE_FACTOR; ++generation) {
+			InvertedIndex flushed = new InvertedIndex();
+			FingerprintBlock block = new FingerprintBlock();
+			for(int i = 0; i < 300; ++i) {
+				block.accept(random.nextInt(2000), random.nextInt(5000));
+			}
+			expected.add(generation, block);
+			flushed.add(generation, block);
+			segments.add(SegmentWriter.write(flushed, directory.resolve(String.format("%016d.seg", generation))));
+		}
+
+		// the merged segment is written but the process dies before the sources are deleted
+		SegmentWriter.merge(segments, directory.resolve(String.format("%016d.seg", segments.size())), new long[] { 0, 1, 2, 3 }, StopList.EMPTY);
+		Files.write(directory.resolve("backup.seg"), new byte[] { 1, 2, 3 });
+
+		try(SegmentedIndex index = new SegmentedIndex(directory, 1 << 20)) {
+			assertEquals(1, index.getSegments().size());
+			assertPostings(expected, index);
+		}
+		List<String> names = new ArrayList<String>();
+		for(File file : directory.toFile().listFiles()) {
+			names.add(file.getName());
+		}
+		Collections.sort(names);
+		assertEquals(2, names.size());
+		assertEquals(String.format("%016d.seg", segments.size()), names.get(0));
+		assertEquals("backup.seg", names.get(1));
+	}
+	
+	public void testStopList() throws Exception {
+		StopList stopList = new StopList(new int[] { 7 });
+		try(SegmentedIndex index = new SegmentedIndex(directory, 1, stopList)) {
+			for(int trackId = 0; trackId < SegmentedIndex.MERGE_FACTOR * 2; ++trackId) {
+				index.add(trackId, new FingerprintBlock(new int[] { 7, 8 }, new int[] { 1, 2 }));
+			}
+			index.flush();
+			assertEquals(0, index.count(7));
+			assertEquals(SegmentedIndex.MERGE_FACTOR * 2, index.count(8));
+		}
+	}
+	
+	public void testRefresh() throws Exception {
+		try(SegmentedIndex index = new SegmentedIndex(directory, 1000)) {
+			index.add(1, new FingerprintBlock(new int[] { 7 }, new int[] { 3 }));
+			assertEquals(0, index.count(7));
+			index.refresh();
+			assertEquals(1, index.count(7));
+		}
+	}
+	
+	private void assertPostings(Index expected, Index actual) {
+		for(int hash = 0; hash < 2000; ++hash) {
+			assertEquals(expected.count(hash), actual.count(hash));
+			assertEquals(getPostings(expected, hash), getPostings(actual, hash));
+		}
+	}
+	
+	private List<Long> getPostings(Index index, int hash) {
+		List<Long> postings = new ArrayList<Long>();
+		index.lookup(hash, (trackId, time) -> postings.add(Posting.pack(trackId, time)));
+		Collections.sort(postings);
+		return postings;
+	}
+
+}
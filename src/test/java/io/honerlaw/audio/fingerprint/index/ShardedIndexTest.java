@@ -0,0 +1,83 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import junit.framework.TestCase;
+
+public class ShardedIndexTest extends TestCase {
+	
+	private static final int TRACKS = 40;
+	
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+	
+	private final int[] trackIds = new int[TRACKS];
+	
+	private final FingerprintBlock[] tracks = new FingerprintBlock[TRACKS];
+	
+	private final InvertedIndex expected = new InvertedIndex();
+	
+	@Override
+	protected void setUp() {
+		Random random = new Random(6);
+		for(int trackId = 0; trackId < TRACKS; ++trackId) {
+			trackIds[trackId] = trackId;
+			tracks[trackId] = new FingerprintBlock();
+			for(int time = 0; time < 1000; ++time) {
+				for(int i = 0; i < 3; ++i) {
+					tracks[trackId].accept(random.nextInt(1 << 16), time);
+				}
+			}
+			expected.add(trackId, tracks[trackId]);
+		}
+	}
+	
+	@Override
+	protected void tearDown() {
+		pool.shutdown();
+	}
+	
+	public void testParallelLoad() {
+		ShardedIndex index = new ShardedIndex(6);
+		assertEquals(8, index.getShardCount());
+		index.addAll(trackIds, tracks, pool);
+		assertEquals(expected.getPostingCount(), index.getPostingCount());
+		for(int hash = 0; hash < 1 << 16; hash += 7) {
+			assertEquals(expected.count(hash), index.count(hash));
+			assertEquals(getPostings(expected, hash), getPostings(index, hash));
+		}
+	}
+	
+	public void testMatch() {
+		ShardedIndex index = new ShardedIndex(4);
+		index.addAll(trackIds, tracks, pool);
+		ShardedMatcher matcher = new ShardedMatcher(index, pool);
+		for(int trackId = 5; trackId < 8; ++trackId) {
+			FingerprintBlock query = new FingerprintBlock();
+			for(int i = 0; i < tracks[trackId].size(); ++i) {
+				int time = tracks[trackId].getTime(i);
+				if(time >= 300 && time < 500) {
+					query.accept(tracks[trackId].getHash(i), time - 300);
+				}
+			}
+			List<Match> matches = matcher.match(query);
+			assertEquals(trackId, matches.get(0).getTrackId());
+			assertEquals(300, matches.get(0).getOffset());
+			
+			// every hash of the query is looked up
+			assertTrue(matches.get(0).getVotes() >= query.size());
+		}
+	}
+	
+	private List<Long> getPostings(Index index, int hash) {
+		List<Long> postings = new ArrayList<Long>();
+		index.lookup(hash, (trackId, time) -> postings.add(Posting.pack(trackId, time)));
+		Collections.sort(postings);
+		return postings;
+	}
+
+}
@@ -0,0 +1,98 @@
+package io.honerlaw.audio.fingerprint.index;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import junit.framework.TestCase;
+
+public class StopListTest extends TestCase {
+	
+	private static final int TRACKS = 40;
+	
+	private static final int HOT_HASH = 7;
+	
+	private final FingerprintBlock[] tracks = new FingerprintBlock[TRACKS];
+	
+	private final InvertedIndex index = new InvertedIndex();
+	
+	@Override
+	protected void setUp() {
+		Random random = new Random(12);
+		for(int trackId = 0; trackId < TRACKS; ++trackId) {
+			tracks[trackId] = new FingerprintBlock();
+			for(int time = 0; time < 500; ++time) {
+				tracks[trackId].accept(time % 10 == 0 ? HOT_HASH : random.nextInt(1 << 20) + 100, time);
+			}
+			index.add(trackId, tracks[trackId]);
+		}
+	}
+	
+	public void testBuildAndRemove() throws Exception {
+		StopList stopList = StopList.build(index, TRACKS, 0.5);
+		assertEquals(1, stopList.size());
+		assertTrue(stopList.contains(HOT_HASH));
+		assertFalse(stopList.contains(tracks[3].getHash(1)));
+		
+		long postings = index.getPostingCount();
+		int size = index.size();
+		assertEquals(TRACKS * 50, index.remove(stopList));
+		assertEquals(postings - TRACKS * 50, index.getPostingCount());
+		assertEquals(size - 1, index.size());
+		assertEquals(0, index.count(HOT_HASH));
+		assertEquals(1, index.count(tracks[3].getHash(1)));
+		
+		File file = File.createTempFile("stop", ".list");
+		try {
+			stopList.save(file.toPath());
+			assertTrue(StopList.load(file.toPath()).contains(HOT_HASH));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	public void testTracksAddedInParts() {
+		
+		// the postings of every track are split by the other tracks
+		InvertedIndex parts = new InvertedIndex();
+		for(int part = 0; part < 3; ++part) {
+			for(int trackId = 0; trackId < 4; ++trackId) {
+				parts.add(trackId, new FingerprintBlock(new int[] { HOT_HASH }, new int[] { part }));
+			}
+		}
+		assertEquals(0, StopList.build(parts, 4).size());
+		assertEquals(1, StopList.build(parts, 3).size());
+		
+		// a share that rounds down to no tracks still lets every hash occur in one
+		StopList stopList = StopList.build(index, TRACKS, 0.01);
+		assertTrue(stopList.contains(HOT_HASH));
+		assertFalse(stopList.contains(tracks[3].getHash(1)));
+	}
+	
+	public void testMatcherSkipsStoppedHashes() {
+		StopList stopList = StopList.build(index, TRACKS / 2);
+		Index counting = new Index() {
+			
+			@Override
+			public int lookup(int hash, PostingConsumer consumer) {
+				assertFalse(hash == HOT_HASH);
+				return index.lookup(hash, consumer);
+			}
+			
+			@Override
+			public int count(int hash) {
+				return index.count(hash);
+			}
+			
+		};
+		FingerprintBlock query = new FingerprintBlock();
+		for(int i = 200; i < 300; ++i) {
+			query.accept(tracks[9].getHash(i), tracks[9].getTime(i) - 200);
+		}
+		List<Match> matches = new Matcher(counting, stopList).match(query);
+		assertEquals(9, matches.get(0).getTrackId());
+		assertEquals(200, matches.get(0).getOffset());
+	}
+
+}
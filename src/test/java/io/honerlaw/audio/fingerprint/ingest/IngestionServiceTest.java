@@ -0,0 +1,216 @@
+package io.honerlaw.audio.fingerprint.ingest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import io.honerlaw.audio.fingerprint.AudioFile;
+import io.honerlaw.audio.fingerprint.index.Match;
+import io.honerlaw.audio.fingerprint.index.Matcher;
+import io.honerlaw.audio.fingerprint.index.SegmentedIndex;
+import io.honerlaw.audio.fingerprint.util.Transcoder;
+import junit.framework.TestCase;
+
+public class IngestionServiceTest extends TestCase {
+
+	private static final int SAMPLE_RATE = 44100;
+
+	/**
+	 * Stands in for ffmpeg, copies the wav file named by the content of the input
+	 */
+	private static final String SCRIPT = String.join("\n",
+		"#!/bin/sh",
+		"for arg; do",
+		"  if [ \"$previous\" = \"-i\" ]; then input=$arg; fi",
+		"  previous=$arg",
+		"done",
+		"if [ \"$input\" = \"pipe:0\" ]; then name=$(cat); else name=$(cat \"$input\"); fi",
+		"cp \"$(dirname \"$0\")/$name.wav\" \"$previous\"",
+		"");
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("ingest");
+		Path script = directory.resolve("ffmpeg");
+		Files.write(script, SCRIPT.getBytes());
+		script.toFile().setExecutable(true);
+		Transcoder.setDefault(new Transcoder(script.toString(), 2, 16, 10000));
+		AudioFile.setWAVDirectory(directory.resolve("wavs"));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Transcoder.getDefault().close();
+		Transcoder.setDefault(null);
+		AudioFile.setWAVDirectory(null);
+		try(Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	public void testIngest() throws Exception {
+		Path pending = directory.resolve("pending");
+		Path processing = directory.resolve("processing");
+		Path completed = directory.resolve("completed");
+		Path staging = Files.createDirectories(directory.resolve("staging"));
+		Files.createDirectories(pending);
+
+		// the fake ffmpeg decodes every file to the wav file its content names
+		Path[] tracks = new Path[4];
+		for(int i = 0; i < tracks.length; ++i) {
+			tracks[i] = staging.resolve("track" + i + ".mp3");
+			Files.write(tracks[i], ("track" + i).getBytes());
+			writeWav(directory.resolve("track" + i + ".wav"), getTrack(i, 20 * SAMPLE_RATE));
+		}
+
+		// a file that can not be converted
+		Path broken = staging.resolve("broken.mp3");
+		Files.write(broken, "broken".getBytes());
+
+		Map<Integer, Path> ingested = new ConcurrentHashMap<Integer, Path>();
+		List<Path> failed = new ArrayList<Path>();
+		CountDownLatch done = new CountDownLatch(tracks.length + 1);
+		IngestionListener listener = new IngestionListener() {
+
+			@Override
+			public void onCompleted(int trackId, String fileHash, Path file) {
+				ingested.put(trackId, file);
+				done.countDown();
+			}
+
+			@Override
+			public void onFailed(Path file, Exception cause) {
+				synchronized(failed) {
+					failed.add(file);
+				}
+				done.countDown();
+			}
+
+		};
+
+		SegmentedIndex index = new SegmentedIndex(directory.resolve("index"));
+		IngestionService service = new IngestionService(index, 100, listener, pending, processing, completed, 2, 2, 1, 200);
+
+		// one file is waiting before the service starts, the others arrive while it
+		// runs, and they are completed by the flush interval before the service closes
+		Files.move(tracks[0], pending.resolve(tracks[0].getFileName()));
+		service.start();
+		for(int i = 1; i < tracks.length; ++i) {
+			Files.move(tracks[i], pending.resolve(tracks[i].getFileName()));
+		}
+		Files.move(broken, pending.resolve(broken.getFileName()));
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		service.close();
+
+		assertEquals(tracks.length, ingested.size());
+		for(int trackId = 100; trackId < 100 + tracks.length; ++trackId) {
+			assertEquals(completed, ingested.get(trackId).getParent());
+		}
+		assertEquals(1, failed.size());
+		assertEquals(processing.resolve("broken.mp3"), failed.get(0));
+		assertTrue(Files.exists(failed.get(0)));
+		assertEquals(0, pending.toFile().list().length);
+		assertEquals(tracks.length, completed.toFile().list().length);
+
+		// the completed files are on disk and the next service continues after their ids
+		assertFalse(index.getSegments().isEmpty());
+		Path state = directory.resolve("index").resolve(IngestionService.STATE_FILE);
+		assertTrue(Integer.parseInt(Files.readAllLines(state).get(0)) >= 100 + tracks.length);
+
+		// every completed file is found under the track id it was indexed under
+		Matcher matcher = new Matcher(index);
+		for(Map.Entry<Integer, Path> entry : ingested.entrySet()) {
+			List<Match> matches = matcher.match(new AudioFile(entry.getValue().toFile()));
+			assertFalse(matches.isEmpty());
+			assertEquals((int) entry.getKey(), matches.get(0).getTrackId());
+			assertEquals(0, matches.get(0).getOffset());
+		}
+		index.close();
+	}
+
+	public void testRecover() throws Exception {
+		Path pending = directory.resolve("pending");
+		Path processing = Files.createDirectories(directory.resolve("processing"));
+		Path completed = directory.resolve("completed");
+		Path index = Files.createDirectories(directory.resolve("index"));
+
+		// a service stopped after flushing song.mp3 but before moving it
+		Files.write(processing.resolve("song.mp3"), "song".getBytes());
+		Files.write(index.resolve(IngestionService.STATE_FILE), "7\n3\tabc\tsong.mp3\n".getBytes());
+
+		List<String> events = new ArrayList<String>();
+		IngestionListener listener = new IngestionListener() {
+
+			@Override
+			public void onCompleted(int trackId, String fileHash, Path file) {
+				events.add(trackId + " " + fileHash + " " + file.getFileName());
+			}
+
+			@Override
+			public void onFailed(Path file, Exception cause) {
+				events.add("failed " + file.getFileName());
+			}
+
+		};
+		try(SegmentedIndex segments = new SegmentedIndex(index)) {
+			IngestionService service = new IngestionService(segments, 1, listener, pending, processing, completed, 1, 1, 1, 200);
+			service.start();
+			service.close();
+		}
+		assertEquals(1, events.size());
+		assertEquals("3 abc song.mp3", events.get(0));
+		assertTrue(Files.exists(completed.resolve("song.mp3")));
+		assertEquals(0, processing.toFile().list().length);
+	}
+
+	/**
+	 * Creates a signal of random tones that change every tenth of a second
+	 */
+	private short[] getTrack(int seed, int length) {
+		Random random = new Random(seed + 100);
+		short[] samples = new short[length];
+		double[] frequencies = new double[4];
+		for(int i = 0; i < length; ++i) {
+			if(i % (SAMPLE_RATE / 10) == 0) {
+				for(int k = 0; k < frequencies.length; ++k) {
+					frequencies[k] = 200 + random.nextDouble() * 4000;
+				}
+			}
+			double value = 0;
+			for(double frequency : frequencies) {
+				value += Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+			}
+			samples[i] = (short) (value * 6000);
+		}
+		return samples;
+	}
+
+	/**
+	 * Writes a 16 bit mono wav file like ffmpeg would
+	 */
+	private void writeWav(Path path, short[] samples) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put("RIFF".getBytes()).putInt(36 + samples.length * 2).put("WAVE".getBytes());
+		buffer.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1);
+		buffer.putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+		buffer.put("data".getBytes()).putInt(samples.length * 2);
+		for(short sample : samples) {
+			buffer.putShort(sample);
+		}
+		Files.write(path, buffer.array());
+	}
+
+}
@@ -0,0 +1,99 @@
+package io.honerlaw.audio.fingerprint.live;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.honerlaw.audio.fingerprint.hash.FingerPrint;
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.hash.Spectrogram;
+import io.honerlaw.audio.fingerprint.hash.SpectrogramStream;
+import io.honerlaw.audio.fingerprint.hash.peak.PeakDetector;
+import io.honerlaw.audio.fingerprint.hash.peak.PeakHasher;
+import io.honerlaw.audio.fingerprint.index.InvertedIndex;
+import io.honerlaw.audio.fingerprint.index.Match;
+import junit.framework.TestCase;
+
+public class StreamRecognizerTest extends TestCase {
+	
+	private static final int SAMPLE_RATE = 44100;
+	
+	public void testRecognize() throws Exception {
+		InvertedIndex index = new InvertedIndex();
+		short[][] tracks = new short[3][];
+		for(int trackId = 0; trackId < tracks.length; ++trackId) {
+			tracks[trackId] = getTrack(trackId, 30 * SAMPLE_RATE);
+			index.add(trackId, getHashes(tracks[trackId]));
+		}
+		
+		// a stream of noise followed by a part of the second track, both a whole number of hops long
+		int noise = 100 * Spectrogram.HOP_SIZE;
+		int start = 200 * Spectrogram.HOP_SIZE;
+		int length = 250 * Spectrogram.HOP_SIZE;
+		Random random = new Random(1);
+		byte[] pcm = new byte[(noise + length) * 2];
+		for(int i = 0; i < noise + length; ++i) {
+			short sample = i < noise ? (short) (random.nextGaussian() * 200) : tracks[1][start + i - noise];
+			pcm[i * 2] = (byte) sample;
+			pcm[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		
+		List<Match> matches = new ArrayList<Match>();
+		List<Integer> times = new ArrayList<Integer>();
+		StreamRecognizer recognizer = new StreamRecognizer(index, (match, time) -> {
+			matches.add(match);
+			times.add(time);
+		});
+		recognizer.process(new ByteArrayInputStream(pcm));
+		
+		assertFalse(matches.isEmpty());
+		for(Match match : matches) {
+			assertEquals(1, match.getTrackId());
+			assertEquals(100, match.getOffset());
+		}
+		
+		// found within a few seconds of the track starting
+		assertTrue(times.get(0) < 100 + 5 * SAMPLE_RATE / Spectrogram.HOP_SIZE);
+		
+		// reported again only after the cooldown
+		for(int i = 1; i < times.size(); ++i) {
+			assertTrue(times.get(i) - times.get(i - 1) >= StreamRecognizer.WINDOW_FRAMES);
+		}
+	}
+	
+	/**
+	 * Creates a signal of random tones that change every tenth of a second
+	 */
+	private short[] getTrack(int seed, int length) {
+		Random random = new Random(seed + 100);
+		short[] samples = new short[length];
+		double[] frequencies = new double[4];
+		for(int i = 0; i < length; ++i) {
+			if(i % (SAMPLE_RATE / 10) == 0) {
+				for(int k = 0; k < frequencies.length; ++k) {
+					frequencies[k] = 200 + random.nextDouble() * 4000;
+				}
+			}
+			double value = 0;
+			for(double frequency : frequencies) {
+				value += Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+			}
+			samples[i] = (short) (value * 6000);
+		}
+		return samples;
+	}
+	
+	private FingerprintBlock getHashes(short[] samples) {
+		FingerprintBlock block = new FingerprintBlock();
+		PeakHasher hasher = new PeakHasher(block);
+		PeakDetector detector = new PeakDetector(Spectrogram.FREQUENCY_BINS, FingerPrint.PEAK_NEIGHBORHOOD, hasher);
+		SpectrogramStream stream = new SpectrogramStream(detector, true);
+		stream.write(samples, 0, samples.length);
+		stream.finish();
+		detector.finish();
+		hasher.finish();
+		return block;
+	}
+
+}
@@ -0,0 +1,230 @@
+package io.honerlaw.audio.fingerprint.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import io.honerlaw.audio.fingerprint.PcmSampleSource;
+import io.honerlaw.audio.fingerprint.hash.FingerPrint;
+import io.honerlaw.audio.fingerprint.hash.FingerprintBlock;
+import io.honerlaw.audio.fingerprint.index.Index;
+import io.honerlaw.audio.fingerprint.index.InvertedIndex;
+import io.honerlaw.audio.fingerprint.index.Match;
+import io.honerlaw.audio.fingerprint.index.PostingConsumer;
+import junit.framework.TestCase;
+
+public class RecognitionServerTest extends TestCase {
+	
+	public void testConcurrentClients() throws Exception {
+		Random random = new Random(10);
+		FingerprintBlock[] tracks = new FingerprintBlock[20];
+		InvertedIndex index = new InvertedIndex();
+		for(int trackId = 0; trackId < tracks.length; ++trackId) {
+			tracks[trackId] = new FingerprintBlock();
+			for(int time = 0; time < 1000; ++time) {
+				tracks[trackId].accept(random.nextInt(1 << 20), time);
+			}
+			index.add(trackId, tracks[trackId]);
+		}
+		
+		try(RecognitionServer server = new RecognitionServer(index)) {
+			int port = server.start(0);
+			List<RecognitionClient> clients = new ArrayList<RecognitionClient>();
+			List<CompletableFuture<List<Match>>> futures = new ArrayList<CompletableFuture<List<Match>>>();
+			for(int c = 0; c < 4; ++c) {
+				clients.add(new RecognitionClient(port));
+			}
+			for(int q = 0; q < 400; ++q) {
+				FingerprintBlock query = new FingerprintBlock();
+				for(int i = 100; i < 200; ++i) {
+					query.accept(tracks[q % tracks.length].getHash(i + q), i - 100);
+				}
+				futures.add(clients.get(q % clients.size()).match(query));
+			}
+			for(int q = 0; q < futures.size(); ++q) {
+				List<Match> matches = futures.get(q).get();
+				assertEquals(q % tracks.length, matches.get(0).getTrackId());
+				assertEquals(100 + q, matches.get(0).getOffset());
+			}
+			for(RecognitionClient client : clients) {
+				client.close();
+			}
+		}
+	}
+	
+	public void testBusy() throws Exception {
+		CountDownLatch looking = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Index index = new Index() {
+			
+			@Override
+			public int lookup(int hash, PostingConsumer consumer) {
+				looking.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return 0;
+			}
+			
+			@Override
+			public int count(int hash) {
+				return 0;
+			}
+			
+		};
+		FingerprintBlock query = new FingerprintBlock(new int[] { 1 }, new int[] { 0 });
+		try(RecognitionServer server = new RecognitionServer(index, 1, 1); RecognitionClient client = new RecognitionClient(server.start(0))) {
+			CompletableFuture<List<Match>> first = client.match(query);
+			looking.await();
+			CompletableFuture<List<Match>> second = client.match(query);
+			while(server.getQueueDepth() == 0) {
+				Thread.sleep(1);
+			}
+			try {
+				client.match(query).get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+			release.countDown();
+			assertTrue(first.get().isEmpty());
+			assertTrue(second.get().isEmpty());
+		}
+	}
+	
+	public void testClose() throws Exception {
+		CountDownLatch looking = new CountDownLatch(1);
+		Index index = new Index() {
+			
+			@Override
+			public int lookup(int hash, PostingConsumer consumer) {
+				looking.countDown();
+				try {
+					new CountDownLatch(1).await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return 0;
+			}
+			
+			@Override
+			public int count(int hash) {
+				return 0;
+			}
+			
+		};
+		FingerprintBlock query = new FingerprintBlock(new int[] { 1 }, new int[] { 0 });
+		RecognitionServer server = new RecognitionServer(index, 4, 1);
+		try(RecognitionClient client = new RecognitionClient(server.start(0))) {
+			CompletableFuture<List<Match>> first = client.match(query);
+			looking.await();
+			CompletableFuture<List<Match>> second = client.match(query);
+			while(server.getQueueDepth() == 0) {
+				Thread.sleep(1);
+			}
+			server.close();
+			
+			// the running batch is answered, the queued query fails instead of hanging
+			assertTrue(first.get(10, TimeUnit.SECONDS).isEmpty());
+			try {
+				second.get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+	
+	public void testClientThatDoesNotRead() throws Exception {
+		
+		// every query matches many tracks so the answers are large
+		InvertedIndex index = new InvertedIndex();
+		FingerprintBlock query = new FingerprintBlock();
+		for(int time = 0; time < 10; ++time) {
+			query.accept(time + 1, time);
+		}
+		for(int trackId = 0; trackId < 200; ++trackId) {
+			index.add(trackId, query);
+		}
+		
+		try(RecognitionServer server = new RecognitionServer(index, 1 << 16, RecognitionServer.MAX_BATCH)) {
+			int port = server.start(0);
+			
+			// sends far more answers than the socket buffers hold and never reads them
+			try(Socket stalled = new Socket(InetAddress.getLoopbackAddress(), port)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stalled.getOutputStream()));
+				for(int id = 0; id < 50000; ++id) {
+					out.writeInt(id);
+					out.writeByte(RecognitionProtocol.HASHES);
+					query.writeTo(out);
+				}
+				out.flush();
+				
+				// the other clients are still answered
+				try(RecognitionClient client = new RecognitionClient(port)) {
+					List<Match> matches = client.match(query).get(30, TimeUnit.SECONDS);
+					assertFalse(matches.isEmpty());
+				}
+			}
+		}
+	}
+	
+	public void testRequestAfterDisconnect() throws Exception {
+		RecognitionServer server = new RecognitionServer(new InvertedIndex());
+		try(RecognitionClient client = new RecognitionClient(server.start(0))) {
+			server.close();
+			FingerprintBlock query = new FingerprintBlock(new int[] { 1 }, new int[] { 0 });
+			
+			// once the client saw the connection end, new requests fail instead of hanging
+			for(int i = 0; i < 100; ++i) {
+				try {
+					client.match(query).get(10, TimeUnit.SECONDS);
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IOException);
+				}
+			}
+			try {
+				client.match(query).get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+	
+	public void testAudio() throws Exception {
+		Random random = new Random(11);
+		byte[] pcm = new byte[10 * 44100 * 2];
+		double frequency = 0;
+		for(int i = 0; i < pcm.length / 2; ++i) {
+			if(i % 4410 == 0) {
+				frequency = 300 + random.nextDouble() * 3000;
+			}
+			short sample = (short) (Math.sin(2 * Math.PI * frequency * i / 44100) * 10000);
+			pcm[i * 2] = (byte) sample;
+			pcm[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		InvertedIndex index = new InvertedIndex();
+		index.add(42, FingerPrint.calculate(new PcmSampleSource(new ByteArrayInputStream(pcm))));
+		
+		try(RecognitionServer server = new RecognitionServer(index); RecognitionClient client = new RecognitionClient(server.start(0))) {
+			List<Match> matches = client.match(pcm).get();
+			assertEquals(42, matches.get(0).getTrackId());
+			assertEquals(0, matches.get(0).getOffset());
+		}
+	}
+
+}
@@ -2,8 +2,16 @@ package io.honerlaw.audio.fingerprint.util;
 
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
@@ -23,21 +31,53 @@ public class HashTest extends TestCase {
 	
 	private InputStream getInputStreamMock(byte[] data) throws Exception {
 		InputStream in = mock(InputStream.class);
-		when(in.available()).thenReturn(data.length);
+		int[] position = new int[1];
 		when(in.read(any(byte[].class), anyInt(), anyInt())).thenAnswer(invo -> {
 			byte[] buf = invo.getArgumentAt(0, byte[].class);
 			int start = invo.getArgumentAt(1, int.class);
-			int length = invo.getArgumentAt(2, int.class);
-			assertEquals(start, 0);
-			assertEquals(length, data.length);
-			for(int i = start; i < length; ++i) {
-				buf[i] = data[i];
+			int length = Math.min(invo.getArgumentAt(2, int.class), data.length - position[0]);
+			if(length == 0) {
+				return -1;
 			}
-			return data.length;
+			System.arraycopy(data, position[0], buf, start, length);
+			position[0] += length;
+			return length;
 		});
 		return in;
 	}
 	
+	public void testCalculateLargeInputStream() throws Exception {
+		
+		// larger than a chunk and larger than what available would report
+		byte[] data = new byte[Hash.CHUNK_SIZE * 3 + 17];
+		new Random(1).nextBytes(data);
+		byte[] expected = MessageDigest.getInstance("SHA-1").digest(data);
+		assertTrue(Arrays.equals(expected, Hash.calculate(getInputStreamMock(data))));
+		assertTrue(Arrays.equals(expected, Hash.calculate(new ByteArrayInputStream(data))));
+	}
+	
+	public void testCalculateConcurrently() throws Exception {
+		byte[] expected = Hash.calculate("foo");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<byte[]>> hashes = new ArrayList<Future<byte[]>>();
+		for(int i = 0; i < 1000; ++i) {
+			hashes.add(executor.submit(() -> Hash.calculate("foo")));
+		}
+		for(Future<byte[]> hash : hashes) {
+			assertTrue(Arrays.equals(expected, hash.get()));
+		}
+		executor.shutdown();
+	}
+	
+	public void testToHex() {
+		byte[] block = { 0, 1, (byte) 0xab, (byte) 0xff };
+		assertEquals("0001abff", Hash.toHex(block));
+		char[] out = new char[12];
+		Arrays.fill(out, '-');
+		assertEquals(10, Hash.toHex(block, out, 2));
+		assertEquals("--0001abff--", new String(out));
+	}
+	
 	public void testCalculateString() {
 		byte[] one = Hash.calculate("foo");
 		byte[] two = Hash.calculate("foo");
@@ -0,0 +1,146 @@
+package io.honerlaw.audio.fingerprint.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+public class TranscoderTest extends TestCase {
+
+	/**
+	 * Stands in for ffmpeg, the content of the input file says what to do
+	 */
+	private static final String SCRIPT = String.join("\n",
+		"#!/bin/sh",
+		"for arg; do",
+		"  if [ \"$previous\" = \"-i\" ]; then input=$arg; fi",
+		"  previous=$arg",
+		"done",
+		"case $(cat \"$input\") in",
+		"  fail) echo \"invalid data\" >&2; exit 1 ;;",
+		"  hang) exec sleep 30 ;;",
+		"  slow) sleep 1 ;;",
+		"esac",
+		"if [ \"$previous\" = \"-\" ]; then echo \"$@\"; else echo \"$@\" > \"$previous\"; fi",
+		"");
+
+	private Path directory;
+
+	private Transcoder transcoder;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("transcoder dir");
+		Path script = directory.resolve("ffmpeg");
+		Files.write(script, SCRIPT.getBytes());
+		script.toFile().setExecutable(true);
+		transcoder = new Transcoder(script.toString(), 2, 4, 10000);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		transcoder.close();
+		try(Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	public void testConvert() throws Exception {
+		File output = directory.resolve("out put.wav").toFile();
+		transcoder.convert(getInput("in put.mp3", "ok"), Arrays.asList("-ac", "1"), output);
+
+		// the paths with spaces are passed as single arguments
+		String arguments = new String(Files.readAllBytes(output.toPath())).trim();
+		assertTrue(arguments.contains("-i " + directory.resolve("in put.mp3")));
+		assertTrue(arguments.endsWith("-ac 1 " + output.getAbsolutePath() + ".tmp"));
+		assertFalse(new File(output.getPath() + ".tmp").exists());
+		assertEquals(1, transcoder.getCompleted());
+		assertEquals(0, transcoder.getFailed());
+	}
+
+	public void testFailure() throws Exception {
+		File output = directory.resolve("out.wav").toFile();
+		try {
+			transcoder.convert(getInput("in.mp3", "fail"), Collections.<String>emptyList(), output);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("invalid data"));
+		}
+		assertFalse(output.exists());
+		assertEquals(1, transcoder.getFailed());
+	}
+
+	public void testTimeout() throws Exception {
+		File output = directory.resolve("out.wav").toFile();
+		long start = System.nanoTime();
+		CompletableFuture<File> future = transcoder.submit(getInput("in.mp3", "hang"), Collections.<String>emptyList(), output, 200);
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertTrue(System.nanoTime() - start < 10000000000L);
+		assertFalse(output.exists());
+		assertEquals(1, transcoder.getTimedOut());
+	}
+
+	public void testBoundedProcesses() throws Exception {
+		File input = getInput("in.mp3", "slow");
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[4];
+		for(int i = 0; i < futures.length; ++i) {
+			futures[i] = transcoder.submit(input, Collections.<String>emptyList(), directory.resolve("out" + i + ".wav").toFile(), 10000);
+		}
+
+		// two run while the others wait in the queue
+		Thread.sleep(300);
+		assertEquals(2, transcoder.getRunning());
+		assertEquals(2, transcoder.getQueueDepth());
+		CompletableFuture.allOf(futures).get();
+		assertEquals(4, transcoder.getCompleted());
+		assertEquals(0, transcoder.getQueueDepth());
+		assertTrue(transcoder.getAverageWaitMillis() > 0);
+		assertTrue(transcoder.getAverageLatencyMillis() >= 1000);
+	}
+
+	public void testStream() throws Exception {
+		Process process = transcoder.stream(getInput("in.mp3", "ok"), Arrays.asList("-f", "s16le"));
+		String arguments;
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			arguments = reader.readLine();
+		}
+		assertEquals(0, process.waitFor());
+		assertTrue(arguments.contains("-i " + directory.resolve("in.mp3")));
+		assertTrue(arguments.endsWith("-f s16le -"));
+	}
+
+	public void testStreamTimeout() throws Exception {
+		try(Transcoder impatient = new Transcoder(directory.resolve("ffmpeg").toString(), 1, 4, 200)) {
+			long start = System.nanoTime();
+			Process process = impatient.stream(getInput("in.mp3", "hang"), Collections.<String>emptyList());
+			assertFalse(process.waitFor() == 0);
+			assertTrue(System.nanoTime() - start < 10000000000L);
+			while(impatient.getRunning() > 0) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, impatient.getTimedOut());
+		}
+	}
+
+	private File getInput(String name, String content) throws IOException {
+		Path input = directory.resolve(name);
+		Files.write(input, content.getBytes());
+		return input.toFile();
+	}
+
+}
@@ -0,0 +1,21 @@
+package io.honerlaw.audio.fingerprint.util;
+
+import java.util.concurrent.ThreadFactory;
+
+import junit.framework.TestCase;
+
+public class VirtualThreadsTest extends TestCase {
+
+	public void testFactory() throws Exception {
+		Thread thread = VirtualThreads.newFactory("worker").newThread(() -> {});
+		assertTrue(thread.isDaemon());
+		assertTrue(thread.getName().startsWith("worker-"));
+
+		ThreadFactory factory = VirtualThreads.newPlatformFactory("cpu");
+		Thread platform = factory.newThread(() -> {});
+		assertTrue(platform.isDaemon());
+		assertEquals("cpu-0", platform.getName());
+		assertEquals("cpu-1", factory.newThread(() -> {}).getName());
+	}
+
+}